@@ -18,20 +18,19 @@ package com.example.matias.nixieclockapp;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
@@ -44,13 +43,19 @@ public class BluetoothLeService extends Service {
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // Handler shared by the operation queues, connection priority controllers and reconnection
+    // engines of every session.
+    private HandlerThread mGattThread;
+    private Handler mGattHandler;
+
+    // What each clock's firmware handles, so it is only probed on the first connection.
+    private CapabilityCache mCapabilityCache;
+
+    // One session per clock. The single device methods below act on mSession, the clock last
+    // passed to connect(String).
+    private GattSessionManager mSessionManager;
+    private volatile GattSession mSession;
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -62,66 +67,133 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
         UUID.fromString(SampleGattAttributes.HM_10); // HM-10
+    public final static UUID UUID_HM_10 = UUID.fromString(SampleGattAttributes.HM_10);
+
+    // In-process listeners. The array is replaced on every change, so dispatching an event
+    // neither locks nor allocates.
+    private final Object mListenersLock = new Object();
+    private volatile GattEventListener[] mListeners = new GattEventListener[0];
+
+    // Rate adapted delivery of received payloads, see getNotificationDispatcher().
+    private final NotificationDispatcher mNotificationDispatcher = new NotificationDispatcher();
+
+    // Intent broadcasts are only sent for receivers that still rely on them.
+    private volatile boolean mBroadcastsEnabled;
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    // Hands the GATT events of every session to the listeners, and optionally broadcasts them.
+    private final GattSession.Listener mSessionListener = new GattSession.Listener() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+        public void onConnectionStateChanged(GattSession session, int state, int status) {
+            final GattEventListener[] listeners = mListeners;
+            if (state == GattSession.STATE_CONNECTED) {
+                for (GattEventListener listener : listeners) {
+                    listener.onConnected(session.getAddress());
+                }
+                if (mBroadcastsEnabled) broadcastUpdate(ACTION_GATT_CONNECTED, session);
+            } else if (state == GattSession.STATE_DISCONNECTED) {
+                for (GattEventListener listener : listeners) {
+                    listener.onDisconnected(session.getAddress(), status);
+                }
+                if (mBroadcastsEnabled) broadcastUpdate(ACTION_GATT_DISCONNECTED, session);
             }
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
+        public void onServicesDiscovered(GattSession session) {
+            for (GattEventListener listener : mListeners) {
+                listener.onServicesDiscovered(session.getAddress());
             }
+            if (mBroadcastsEnabled) broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, session);
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onDataAvailable(GattSession session,
+                                    BluetoothGattCharacteristic characteristic,
+                                    ByteBuffer payload) {
+            // Every listener gets the view from the start, whatever the previous one read.
+            for (GattEventListener listener : mListeners) {
+                payload.rewind();
+                listener.onDataAvailable(session.getAddress(), characteristic, payload);
+            }
+            mNotificationDispatcher.publish(session.getAddress(), payload);
+            if (mBroadcastsEnabled) {
+                payload.rewind();
+                final byte[] data = new byte[payload.remaining()];
+                payload.get(data);
+                broadcastUpdate(ACTION_DATA_AVAILABLE, session, characteristic, data);
             }
         }
+    };
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+    /**
+     * Registers a listener for the GATT events of every clock. Events are delivered on binder
+     * threads, see {@link GattEventListener}.
+     */
+    public void addGattEventListener(GattEventListener listener) {
+        synchronized (mListenersLock) {
+            for (GattEventListener registered : mListeners) {
+                if (registered == listener) return;
+            }
+            final GattEventListener[] listeners =
+                    Arrays.copyOf(mListeners, mListeners.length + 1);
+            listeners[listeners.length - 1] = listener;
+            mListeners = listeners;
         }
-    };
+    }
+
+    public void removeGattEventListener(GattEventListener listener) {
+        synchronized (mListenersLock) {
+            final GattEventListener[] current = mListeners;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == listener) {
+                    final GattEventListener[] listeners = new GattEventListener[current.length - 1];
+                    System.arraycopy(current, 0, listeners, 0, i);
+                    System.arraycopy(current, i + 1, listeners, i, current.length - i - 1);
+                    mListeners = listeners;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the dispatcher for consumers that can't keep up with the notification rate: UI
+     * subscribers get the latest payload once per display frame, logging and recording
+     * subscribers every payload under a backpressure policy of their choice.
+     */
+    public NotificationDispatcher getNotificationDispatcher() {
+        return mNotificationDispatcher;
+    }
+
+    /**
+     * Turns the {@link #ACTION_GATT_CONNECTED}, {@link #ACTION_GATT_DISCONNECTED},
+     * {@link #ACTION_GATT_SERVICES_DISCOVERED} and {@link #ACTION_DATA_AVAILABLE} broadcasts on or
+     * off. They are off by default; every event costs an {@code Intent} and a trip through the
+     * system, so only enable them for receivers that can't use {@link GattEventListener}.
+     */
+    public void setBroadcastsEnabled(boolean enabled) {
+        mBroadcastsEnabled = enabled;
+    }
 
-    private void broadcastUpdate(final String action) {
+    private void broadcastUpdate(final String action, final GattSession session) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, session.getAddress());
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
+    private void broadcastUpdate(final String action, final GattSession session,
+                                 final BluetoothGattCharacteristic characteristic,
+                                 final byte[] payload) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, session.getAddress());
+        if (payload != null) {
+            intent.putExtra(EXTRA_DATA, payload);
+        }
 
         /*
         // This is special handling for the Heart Rate Measurement profile.  Data parsing is
@@ -179,6 +251,23 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mGattThread = new HandlerThread(TAG);
+        mGattThread.start();
+        mGattHandler = new Handler(mGattThread.getLooper());
+        mCapabilityCache = new CapabilityCache(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        close();
+        mNotificationDispatcher.unsubscribeAll();
+        mGattThread.quitSafely();
+        super.onDestroy();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -217,90 +306,82 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        if (mSessionManager == null) {
+            mSessionManager = new GattSessionManager(this, mBluetoothAdapter, mGattHandler,
+                    mCapabilityCache, mSessionListener);
+        }
         return true;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device. The device becomes the one
+     * the single device methods of this service act on; connections to other clocks stay open.
      *
      * @param address The device address of the destination device.
      *
-     * @return Return true if the connection is initiated successfully. The connection result
-     *         is reported asynchronously through the
-     *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     *         callback.
+     * @return Return true if the connection is initiated successfully, or queued until a
+     *         connection slot frees up. The connection result is reported asynchronously through
+     *         {@link GattEventListener#onConnected} and {@link GattEventListener#onDisconnected}.
      */
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null || address == null) {
+        if (mSessionManager == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
-
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
+        final GattSession session = mSessionManager.connect(address);
+        if (session == null) {
             return false;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        mSession = session;
         return true;
     }
 
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * is reported asynchronously through {@link GattEventListener#onDisconnected}.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattSession session = mSession;
+        if (mSessionManager == null || session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        mSessionManager.disconnect(session.getAddress());
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * released properly. Closes the connections to every clock.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        mSession = null;
+        if (mSessionManager == null) {
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mSessionManager.closeAll();
+    }
+
+    /**
+     * @return The manager holding the connections to every clock, null before
+     *         {@link #initialize()}.
+     */
+    public GattSessionManager getSessionManager() {
+        return mSessionManager;
     }
 
     /**
      * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * asynchronously through {@link GattEventListener#onDataAvailable}.
      *
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattSession session = mSession;
+        if (session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        session.readCharacteristic(characteristic);
     }
 
     /**
@@ -311,19 +392,12 @@ public class BluetoothLeService extends Service {
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattSession session = mSession;
+        if (session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-
-        // This is specific to Heart Rate Measurement.
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
+        session.setCharacteristicNotification(characteristic, enabled);
     }
 
     /**
@@ -333,12 +407,256 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        final GattSession session = mSession;
+        if (session == null) return null;
+
+        return session.getSupportedGattServices();
+    }
 
-        return mBluetoothGatt.getServices();
+    /**
+     * Returns the HM-10 characteristic of the current connection. It is resolved once services
+     * have been discovered, so callers don't need to walk {@link #getSupportedGattServices()}
+     * themselves.
+     *
+     * @return The characteristic, or null if not connected or the device doesn't expose it.
+     */
+    public BluetoothGattCharacteristic getClockCharacteristic() {
+        final GattSession session = mSession;
+        return session != null ? session.getClockCharacteristic() : null;
     }
 
+    /**
+     * Queues a write of the characteristic's current value. The value is captured now, so the
+     * characteristic can be reused right away.
+     *
+     * @param characteristic The characteristic to write to.
+     */
     public void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        writeCharacteristic(characteristic, characteristic.getValue(), null);
+    }
+
+    /**
+     * Queues a write of {@code value} to the given characteristic, split in packets of
+     * {@link #getMaxPacketSize()} bytes, or of the serial buffer's size for the clock, whose
+     * writes are paced like streamed ones. The write result is reported through {@code callback}
+     * once {@code BluetoothGattCallback#onCharacteristicWrite} fired for the last packet, a
+     * packet failed or timed out, or the connection went away.
+     *
+     * @param characteristic The characteristic to write to.
+     * @param value The bytes to write.
+     * @param callback Completion callback, may be null.
+     *
+     * @return Return true if the write was queued.
+     */
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                                       GattOperation.Callback callback) {
+        final GattSession session = mSession;
+        if (session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        return session.writeCharacteristic(characteristic, value, callback);
+    }
+
+    /**
+     * Writes {@code value} to the clock characteristic of every connected clock at once, e.g. to
+     * set the time on a whole room.
+     *
+     * @param callback Per-clock and overall results, may be null.
+     *
+     * @return The number of clocks the write was queued on.
+     */
+    public int writeAll(byte[] value, GattSessionManager.FanOutCallback callback) {
+        if (mSessionManager == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return 0;
+        }
+        return mSessionManager.writeAll(value, callback);
+    }
+
+    /**
+     * @return What the connected clock's firmware handles, or null while unknown or without a
+     *         connection.
+     */
+    public ClockCapabilities getCapabilities() {
+        final GattSession session = mSession;
+        return session != null ? session.getCapabilities() : null;
+    }
+
+    /**
+     * Forgets what the clock at {@code address} reported, so a clock known to run binary
+     * firmware is probed again on the next connection, e.g. after it was reflashed. Others are
+     * treated as legacy ones; a legacy clock reflashed with binary firmware is only detected by
+     * {@link #probeCapabilities()}, the menu's "Detect binary firmware".
+     */
+    public void invalidateCapabilities(String address) {
+        mCapabilityCache.invalidate(address);
+    }
+
+    /**
+     * Asks the connected clock what its firmware handles, see
+     * {@link GattSession#probeCapabilities()}. Only for clocks with binary firmware; the user
+     * has to tell, the legacy firmware is jammed by the query until power cycled.
+     *
+     * @return false without a connection.
+     */
+    public boolean probeCapabilities() {
+        final GattSession session = mSession;
+        if (session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        return session.probeCapabilities();
+    }
+
+    /**
+     * Sets the clock to the phone's local time, down to the second and compensated for the link
+     * latency. Needs firmware that understands the binary protocol.
+     *
+     * @param callback Result of the sync, called on a background thread.
+     */
+    public void syncTime(TimeSyncEngine.Callback callback) {
+        final GattSession session = mSession;
+        if (session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            callback.onSyncFailed(GattOperation.STATUS_REJECTED);
+            return;
+        }
+        session.syncTime(callback);
+    }
+
+    /**
+     * @return Settings model of the connected clock, or null without a connection. Changes
+     *         are sent with {@link #pushClockState} and resent on reconnect if the clock lost
+     *         them.
+     */
+    public ClockState getClockState() {
+        final GattSession session = mSession;
+        return session != null ? session.getClockState() : null;
+    }
+
+    /**
+     * Sends the changes of {@link #getClockState()} the clock hasn't acknowledged yet.
+     *
+     * @param callback Outcome, called on a background thread. May be null.
+     */
+    public void pushClockState(ClockStateSync.Callback callback) {
+        final GattSession session = mSession;
+        if (session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            if (callback != null) callback.onStateSyncFailed(GattOperation.STATUS_REJECTED);
+            return;
+        }
+        session.pushClockState(callback);
+    }
+
+    /**
+     * Sends {@code data} to the connected clock's EEPROM as blob {@code id}, resuming an
+     * earlier, interrupted transfer of the same payload.
+     *
+     * @param listener Progress and outcome, called on a background thread. May be null.
+     *
+     * @return The transfer, or null without a connection.
+     */
+    public BulkTransfer startBulkTransfer(int id, byte[] data, BulkTransfer.Listener listener) {
+        final GattSession session = mSession;
+        if (session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return null;
+        }
+        return session.startBulkTransfer(id, data, listener);
+    }
+
+    /**
+     * @return Digit streamer of the connected clock, or null without a connection.
+     */
+    public DisplayStreamer getDisplayStreamer() {
+        final GattSession session = mSession;
+        return session != null ? session.getDisplayStreamer() : null;
+    }
+
+    /**
+     * Starts a set of settings for the connected clock, sent as one frame and acknowledged once:
+     * {@code batch().time(h, m, s).brightness(level).mode24h(true).commit(callback)}.
+     * Without a connection the batch's {@code commit} returns false.
+     */
+    public SettingsBatch batch() {
+        final GattSession session = mSession;
+        return session != null ? session.batch() : new SettingsBatch(null);
+    }
+
+    /**
+     * Streams {@code data} to the given characteristic using writes without response, split in
+     * {@link #getMaxPacketSize()} byte packets. Each packet costs a fraction of a connection
+     * event instead of a full round trip; packets to the clock are paced by the queue's
+     * {@code CreditFlowController}, and no larger than its buffer, so the HM-10 and the Arduino
+     * serial buffer are not overrun.
+     * Characteristics that don't support writes without response fall back to regular writes.
+     *
+     * @param characteristic The characteristic to write to.
+     * @param data The bytes to stream.
+     * @param callback Called once, after the last packet went out or as soon as one failed.
+     *                 May be null.
+     *
+     * @return Return true if the packets were queued.
+     */
+    public boolean streamCharacteristic(BluetoothGattCharacteristic characteristic, byte[] data,
+                                        GattOperation.Callback callback) {
+        final GattSession session = mSession;
+        if (session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        return session.streamCharacteristic(characteristic, data, callback);
+    }
+
+    /**
+     * @return The ATT MTU negotiated for the current connection, 23 if none was negotiated.
+     */
+    public int getMtu() {
+        final GattSession session = mSession;
+        return session != null ? session.getMtu() : Packetizer.DEFAULT_MTU;
+    }
+
+    /**
+     * @return Largest value that fits in a single write or notification (MTU - 3, at most
+     *         512).
+     */
+    public int getMaxPacketSize() {
+        return Packetizer.packetSizeForMtu(getMtu());
+    }
+
+    /**
+     * @return Connection priority and PHY decisions taken for the current connection, null if
+     *         there is none.
+     */
+    public ConnectionPriorityController.Metrics getLinkMetrics() {
+        final GattSession session = mSession;
+        return session != null ? session.getLinkMetrics() : null;
+    }
+
+    /**
+     * @return Disconnect and reconnection counts, and how long the last reconnection took; null
+     *         if there is no connection.
+     */
+    public ReconnectionEngine.Metrics getReconnectionMetrics() {
+        final GattSession session = mSession;
+        return session != null ? session.getReconnectionMetrics() : null;
+    }
+
+    /**
+     * Configures the pacing of {@link #streamCharacteristic}. The defaults match the firmware's
+     * 9600 baud serial port; raise them together with the HM-10 (AT+BAUD) and firmware baud rate.
+     *
+     * @param capacityBytes Receive buffer size of the peer.
+     * @param drainBytesPerSecond Rate at which the peer empties that buffer.
+     */
+    public void setStreamFlowControl(int capacityBytes, int drainBytesPerSecond) {
+        final GattSession session = mSession;
+        if (session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        session.setStreamFlowControl(capacityBytes, drainBytesPerSecond);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,261 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothGatt;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.matias.nixieclockapp.protocol.Crc16;
+import com.example.matias.nixieclockapp.protocol.Frame;
+
+/**
+ * Sends a payload far larger than a frame (schedules, animation tables, configuration blobs) to
+ * the clock's EEPROM, and picks up where it stopped after a disconnect.
+ *
+ * {@code OP_BULK_BEGIN} names the blob by id, size and CRC; the clock answers with how much of
+ * that exact blob it already committed, so a transfer interrupted by a disconnect or an app
+ * restart resumes from there. The data then goes in {@link Frame#BULK_CHUNK_SIZE} byte chunks
+ * over the session's {@link ReliableStream}; each chunk is closed with {@code OP_BULK_COMMIT}
+ * carrying its end offset and CRC, and the clock only writes it to EEPROM once the CRC matches.
+ * A refused chunk is sent again, up to {@link #MAX_CHUNK_ATTEMPTS} times.
+ *
+ * The committed offset is also saved in the app's preferences, per address and id, so the app
+ * can tell which transfers are unfinished without a connection.
+ */
+public class BulkTransfer {
+    private final static String TAG = BulkTransfer.class.getSimpleName();
+
+    private static final String PREFS_NAME = "bulk_transfers";
+    private static final String SEPARATOR = "|";
+
+    public static final int MAX_CHUNK_ATTEMPTS = 3;
+
+    /**
+     * Progress and outcome. Called on a binder thread or the session's handler thread.
+     */
+    public interface Listener {
+        /**
+         * @param committed Bytes the clock has verified and stored.
+         * @param total Size of the payload.
+         * @param bytesPerSecond Throughput of this run, resumed bytes excluded.
+         */
+        void onProgress(int committed, int total, double bytesPerSecond);
+
+        void onComplete();
+
+        /**
+         * @param status {@code GattOperation.STATUS_REJECTED} if the clock refused the payload
+         *               or a chunk too often, otherwise a transport failure. The transfer can be
+         *               started again to resume.
+         */
+        void onFailed(int status);
+    }
+
+    private final GattSession mSession;
+    private final SharedPreferences mPreferences;
+    private final int mId;
+    private final byte[] mData;
+    private final int mCrc;
+    private final Listener mListener;
+    private final byte[] mCommand = new byte[6];
+
+    private int mCommitted;
+    private int mChunkEnd;
+    private int mChunkAttempts;
+    private int mResumedFrom;
+    private long mStartedAtMs;
+    private boolean mDone;
+
+    BulkTransfer(Context context, GattSession session, int id, byte[] data, Listener listener) {
+        if (id < 0 || id > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid id " + id);
+        }
+        if (data.length > Frame.BULK_MAX_SIZE) {
+            throw new IllegalArgumentException("Payload larger than " + Frame.BULK_MAX_SIZE);
+        }
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mSession = session;
+        mId = id;
+        mData = data;
+        mCrc = Crc16.update(Crc16.INITIAL, data, 0, data.length);
+        mListener = listener;
+    }
+
+    /**
+     * @return Bytes of blob {@code id} the clock at {@code address} had committed when last
+     *         heard from, or 0 if no transfer of it is unfinished.
+     */
+    public static int getSavedOffset(Context context, String address, int id) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getInt(key(address, id), 0);
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public synchronized int getCommitted() {
+        return mCommitted;
+    }
+
+    /**
+     * Stops after the chunk in flight, without calling the listener. The clock keeps what it
+     * committed.
+     */
+    public void cancel() {
+        finish(GattOperation.STATUS_CANCELLED);
+    }
+
+    void start() {
+        synchronized (this) {
+            mStartedAtMs = SystemClock.elapsedRealtime();
+        }
+        putShort(0, mId);
+        putShort(2, mData.length);
+        putShort(4, mCrc);
+        final int sequence = mSession.getFrameChannel().send(Frame.OP_BULK_BEGIN, mCommand, 0, 6,
+                new FrameChannel.ResponseCallback() {
+                    @Override
+                    public void onResponse(Frame response, long receivedAtNanos) {
+                        if (response.getOpcode() != Frame.OP_ACK || response.getLength() < 2) {
+                            finish(GattOperation.STATUS_REJECTED);
+                            return;
+                        }
+                        final int offset = response.getPayloadByte(0) << 8
+                                | response.getPayloadByte(1);
+                        final int saved = mPreferences.getInt(key(mSession.getAddress(), mId), 0);
+                        if (offset != saved) {
+                            Log.i(TAG, "Clock has " + offset + " bytes of " + mId + ", expected "
+                                    + saved);
+                        }
+                        synchronized (BulkTransfer.this) {
+                            mCommitted = offset;
+                            mResumedFrom = offset;
+                        }
+                        nextChunk();
+                    }
+
+                    @Override
+                    public void onFailure(int status) {
+                        finish(status);
+                    }
+                }, FrameChannel.DEFAULT_RESPONSE_TIMEOUT_MS, GattOperation.PRIORITY_BULK);
+        if (sequence < 0) finish(GattOperation.STATUS_REJECTED);
+    }
+
+    private void nextChunk() {
+        final int offset;
+        final int length;
+        synchronized (this) {
+            if (mDone) return;
+            if (mCommitted >= mData.length) {
+                offset = -1;
+                length = 0;
+            } else {
+                offset = mCommitted;
+                length = Math.min(Frame.BULK_CHUNK_SIZE, mData.length - offset);
+                mChunkEnd = offset + length;
+            }
+        }
+        if (offset < 0) {
+            finish(BluetoothGatt.GATT_SUCCESS);
+            return;
+        }
+        final byte[] chunk = new byte[length];
+        System.arraycopy(mData, offset, chunk, 0, length);
+        mSession.getReliableStream().send(chunk, new ReliableStream.Callback() {
+            @Override
+            public void onComplete(int status) {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    finish(status);
+                    return;
+                }
+                commitChunk(chunk);
+            }
+        });
+    }
+
+    private void commitChunk(byte[] chunk) {
+        final int end;
+        synchronized (this) {
+            if (mDone) return;
+            end = mChunkEnd;
+        }
+        putShort(0, end);
+        putShort(2, Crc16.update(Crc16.INITIAL, chunk, 0, chunk.length));
+        final int sequence = mSession.getFrameChannel().send(Frame.OP_BULK_COMMIT, mCommand, 0, 4,
+                new FrameChannel.ResponseCallback() {
+                    @Override
+                    public void onResponse(Frame response, long receivedAtNanos) {
+                        if (response.getOpcode() == Frame.OP_ACK) {
+                            onChunkCommitted(end);
+                        } else {
+                            onChunkRefused();
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(int status) {
+                        finish(status);
+                    }
+                }, FrameChannel.DEFAULT_RESPONSE_TIMEOUT_MS, GattOperation.PRIORITY_BULK);
+        if (sequence < 0) finish(GattOperation.STATUS_REJECTED);
+    }
+
+    private void onChunkCommitted(int end) {
+        final double bytesPerSecond;
+        synchronized (this) {
+            mCommitted = end;
+            mChunkAttempts = 0;
+            final long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - mStartedAtMs);
+            bytesPerSecond = (mCommitted - mResumedFrom) * 1000.0 / elapsedMs;
+        }
+        mPreferences.edit().putInt(key(mSession.getAddress(), mId), end).apply();
+        if (mListener != null) mListener.onProgress(end, mData.length, bytesPerSecond);
+        nextChunk();
+    }
+
+    private void onChunkRefused() {
+        final boolean giveUp;
+        synchronized (this) {
+            giveUp = ++mChunkAttempts >= MAX_CHUNK_ATTEMPTS;
+            if (giveUp) {
+                Log.w(TAG, "Chunk ending at " + mChunkEnd + " refused " + mChunkAttempts
+                        + " times");
+            }
+        }
+        if (giveUp) {
+            finish(GattOperation.STATUS_REJECTED);
+        } else {
+            // The clock dropped the chunk and is back at the last commit.
+            nextChunk();
+        }
+    }
+
+    private void finish(int status) {
+        synchronized (this) {
+            if (mDone) return;
+            mDone = true;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mPreferences.edit().remove(key(mSession.getAddress(), mId)).apply();
+            Log.i(TAG, "Transfer " + mId + " complete, " + mData.length + " bytes");
+            if (mListener != null) mListener.onComplete();
+        } else {
+            Log.w(TAG, "Transfer " + mId + " stopped at " + getCommitted() + ": " + status);
+            if (mListener != null && status != GattOperation.STATUS_CANCELLED) {
+                mListener.onFailed(status);
+            }
+        }
+    }
+
+    private void putShort(int index, int value) {
+        mCommand[index] = (byte) (value >>> 8);
+        mCommand[index + 1] = (byte) value;
+    }
+
+    private static String key(String address, int id) {
+        return address + SEPARATOR + id;
+    }
+}
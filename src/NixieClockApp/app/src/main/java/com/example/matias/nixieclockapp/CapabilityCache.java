@@ -0,0 +1,107 @@
+package com.example.matias.nixieclockapp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers, per device address, the {@link ClockCapabilities} a clock reported, so later
+ * connections use its fastest supported commands right away instead of probing it again.
+ *
+ * The probe itself is only safe for binary firmware: the legacy firmware stops accepting its
+ * {@code "HH,MM"} frame after any other bytes until it is power cycled. So the cache also
+ * remembers which clocks may be probed, those that answered a probe with binary capabilities or
+ * that the user said run binary firmware ({@link #setProbeAllowed}).
+ *
+ * Binary entries age out after {@link #MAX_AGE_MS}, so a clock that got newer binary firmware is
+ * eventually probed again. Legacy entries don't: the clock may not be probed on its own, so a
+ * legacy clock reflashed with binary firmware is only found by the user's "Detect binary
+ * firmware" probe. {@link #invalidate} forgets a clock right away.
+ */
+public class CapabilityCache {
+    private final static String TAG = CapabilityCache.class.getSimpleName();
+
+    private static final String PREFS_NAME = "clock_capabilities";
+    private static final String SEPARATOR = "|";
+    // Key prefix of the probe permissions, next to the entries keyed by address.
+    private static final String PROBE_PREFIX = "probe:";
+
+    public static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(30);
+
+    private final SharedPreferences mPreferences;
+    private long mHitCount;
+    private long mMissCount;
+
+    public CapabilityCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return What the clock at {@code address} reported last, or null if unknown.
+     */
+    public ClockCapabilities get(String address) {
+        final String cached = mPreferences.getString(address, null);
+        ClockCapabilities capabilities = null;
+        if (cached != null) {
+            final int separator = cached.indexOf(SEPARATOR);
+            try {
+                final long probedAtMs = Long.parseLong(cached.substring(0, separator));
+                capabilities = ClockCapabilities.decode(cached.substring(separator + 1));
+                final long ageMs = System.currentTimeMillis() - probedAtMs;
+                if (capabilities != null && capabilities.isBinary()
+                        && (ageMs < 0 || ageMs > MAX_AGE_MS)) {
+                    capabilities = null;
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Malformed cache entry: " + cached);
+            }
+        }
+        synchronized (this) {
+            if (capabilities != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+        }
+        return capabilities;
+    }
+
+    /**
+     * Stores what the clock at {@code address} reported. Binary capabilities also allow later
+     * probes, a legacy answer forbids them.
+     */
+    public void put(String address, ClockCapabilities capabilities) {
+        mPreferences.edit().putString(address,
+                System.currentTimeMillis() + SEPARATOR + capabilities.encode())
+                .putBoolean(PROBE_PREFIX + address, capabilities.isBinary()).apply();
+    }
+
+    /**
+     * @return true if the clock at {@code address} is known to run binary firmware, so probing
+     *         it can't disturb it.
+     */
+    public boolean isProbeAllowed(String address) {
+        return mPreferences.getBoolean(PROBE_PREFIX + address, false);
+    }
+
+    public void setProbeAllowed(String address, boolean allowed) {
+        mPreferences.edit().putBoolean(PROBE_PREFIX + address, allowed).apply();
+    }
+
+    /**
+     * Forgets what the clock at {@code address} reported, e.g. after a firmware update.
+     */
+    public void invalidate(String address) {
+        mPreferences.edit().remove(address).apply();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.matias.nixieclockapp;
+
+import com.example.matias.nixieclockapp.protocol.Frame;
+
+/**
+ * What a clock's firmware can do, as reported by {@code OP_GET_CAPABILITIES}.
+ *
+ * Clocks that don't answer the query run the legacy firmware, which only understands the
+ * {@code "HH,MM"} ASCII frame ({@link #LEGACY}). Binary firmware from before the query NACKs it
+ * and is assumed to handle the time commands only ({@link #BASIC}).
+ */
+public class ClockCapabilities {
+    public static final int VARIANT_UNKNOWN = 0;
+
+    public static final ClockCapabilities LEGACY =
+            new ClockCapabilities(VARIANT_UNKNOWN, 0, 0, 0, 0, 0);
+    public static final ClockCapabilities BASIC = new ClockCapabilities(VARIANT_UNKNOWN, 0,
+            Frame.MAX_PAYLOAD, 0, 0, bit(Frame.OP_SET_TIME) | bit(Frame.OP_SET_DATETIME));
+
+    private static final String SEPARATOR = ",";
+
+    private final int mVariant;
+    private final int mFlags;
+    private final int mMaxPayload;
+    private final int mStreamWindow;
+    private final int mBulkMaxSize;
+    // Bit n: opcode Frame.CAPABILITY_OPCODE_BASE + n is handled.
+    private final int mOpcodes;
+
+    ClockCapabilities(int variant, int flags, int maxPayload, int streamWindow, int bulkMaxSize,
+                      int opcodes) {
+        mVariant = variant;
+        mFlags = flags;
+        mMaxPayload = maxPayload;
+        mStreamWindow = streamWindow;
+        mBulkMaxSize = bulkMaxSize;
+        mOpcodes = opcodes;
+    }
+
+    /**
+     * @return The capabilities in an {@code OP_CAPABILITIES} response, or null if it's too
+     *         short.
+     */
+    static ClockCapabilities fromFrame(Frame response) {
+        if (response.getOpcode() != Frame.OP_CAPABILITIES
+                || response.getLength() < Frame.CAPABILITIES_SIZE) {
+            return null;
+        }
+        return new ClockCapabilities(response.getPayloadByte(0), response.getPayloadByte(1),
+                response.getPayloadByte(2), response.getPayloadByte(3),
+                response.getPayloadByte(4) << 8 | response.getPayloadByte(5),
+                response.getPayloadByte(6) << 24 | response.getPayloadByte(7) << 16
+                        | response.getPayloadByte(8) << 8 | response.getPayloadByte(9));
+    }
+
+    /**
+     * @return The capabilities written by {@link #encode()}, or null if malformed.
+     */
+    static ClockCapabilities decode(String encoded) {
+        final String[] fields = encoded.split(SEPARATOR);
+        if (fields.length != 6) return null;
+        try {
+            return new ClockCapabilities(Integer.parseInt(fields[0]),
+                    Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                    Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                    Integer.parseInt(fields[5]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    String encode() {
+        return mVariant + SEPARATOR + mFlags + SEPARATOR + mMaxPayload + SEPARATOR
+                + mStreamWindow + SEPARATOR + mBulkMaxSize + SEPARATOR + mOpcodes;
+    }
+
+    /**
+     * @return One of the {@code Frame.VARIANT_} ids, or {@link #VARIANT_UNKNOWN}.
+     */
+    public int getVariant() {
+        return mVariant;
+    }
+
+    /**
+     * @return false if the clock only understands the legacy ASCII frame.
+     */
+    public boolean isBinary() {
+        return mMaxPayload > 0;
+    }
+
+    public boolean hasRtc() {
+        return (mFlags & Frame.CAP_RTC) != 0;
+    }
+
+    /**
+     * @return Largest frame payload the clock accepts, 0 for the legacy firmware.
+     */
+    public int getMaxPayload() {
+        return mMaxPayload;
+    }
+
+    /**
+     * @return Segments the clock buffers on the reliable stream, 0 without one.
+     */
+    public int getStreamWindow() {
+        return mStreamWindow;
+    }
+
+    /**
+     * @return Largest bulk transfer the clock stores, 0 without bulk transfers.
+     */
+    public int getBulkMaxSize() {
+        return mBulkMaxSize;
+    }
+
+    /**
+     * @return true if the clock handles command {@code opcode}.
+     */
+    public boolean supports(int opcode) {
+        if (opcode == Frame.OP_ECHO) return isBinary();
+        final int bit = opcode - Frame.CAPABILITY_OPCODE_BASE;
+        return bit >= 0 && bit < 32 && (mOpcodes & (1 << bit)) != 0;
+    }
+
+    @Override
+    public String toString() {
+        if (!isBinary()) return "legacy";
+        return "variant=" + mVariant + " rtc=" + hasRtc() + " maxPayload=" + mMaxPayload
+                + " window=" + mStreamWindow + " bulk=" + mBulkMaxSize
+                + " opcodes=0x" + Integer.toHexString(mOpcodes);
+    }
+
+    private static int bit(int opcode) {
+        return 1 << (opcode - Frame.CAPABILITY_OPCODE_BASE);
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scans for clocks through {@code BluetoothLeScanner}, matching only devices that advertise the
+ * HM-10 service. Where the controller supports it the filter runs in the controller, so other
+ * devices in range never wake the app; elsewhere the Bluetooth stack applies it before anything
+ * reaches the app process.
+ *
+ * The scan mode ({@code ScanSettings.SCAN_MODE_}) trades discovery latency for radio time and
+ * applies from the next {@link #start()}.
+ *
+ * Results reach the listener in batches, at most one per {@link #FRAME_MS} by default, with
+ * repeated advertisements of a device within a batch collapsed to the latest one, so a crowded
+ * room costs one list update per frame instead of one per advertisement. A longer
+ * {@link #setReportDelay report delay} moves the batching into the controller where it
+ * supports it ({@code ScanSettings.Builder#setReportDelay}), letting the application processor
+ * sleep in between; elsewhere the app batches over the same window.
+ */
+public class ClockScanner {
+    private final static String TAG = ClockScanner.class.getSimpleName();
+
+    public static final ParcelUuid HM_10_SERVICE =
+            ParcelUuid.fromString(SampleGattAttributes.HM_10_SERVICE);
+
+    // Batching window of the app-side batching, one display frame.
+    public static final long FRAME_MS = 16;
+
+    /**
+     * Receives the scan results, on the handler's thread.
+     */
+    public interface Listener {
+        /**
+         * @param results Latest result of each device seen since the last call, in the order
+         *                they were first seen.
+         */
+        void onDevicesFound(List<ScanResult> results);
+
+        /**
+         * @param errorCode One of the {@code ScanCallback.SCAN_FAILED_} codes.
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    /**
+     * Counters since the scanner was created.
+     */
+    public static class Metrics {
+        public final long scans;
+        // Calls of the scan callback, and the results they carried.
+        public final long callbacks;
+        public final long results;
+        // Batches handed to the listener.
+        public final long deliveries;
+        public final long failures;
+        public final long scanMs;
+
+        Metrics(long scans, long callbacks, long results, long deliveries, long failures,
+                long scanMs) {
+            this.scans = scans;
+            this.callbacks = callbacks;
+            this.results = results;
+            this.deliveries = deliveries;
+            this.failures = failures;
+            this.scanMs = scanMs;
+        }
+
+        @Override
+        public String toString() {
+            return "scans=" + scans + " callbacks=" + callbacks + " results=" + results
+                    + " deliveries=" + deliveries + " failures=" + failures
+                    + " scanMs=" + scanMs;
+        }
+    }
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final List<ScanFilter> mFilters;
+    private int mScanMode = ScanSettings.SCAN_MODE_BALANCED;
+    private long mReportDelayMs;
+
+    private BluetoothLeScanner mScanner;
+    private long mStartedAtMs;
+    // Batching window of the current scan, 0 when the controller batches.
+    private long mWindowMs;
+    // Results waiting for the next delivery, by device address.
+    private final Map<String, ScanResult> mPending = new LinkedHashMap<String, ScanResult>();
+    private boolean mDeliveryScheduled;
+    // The controller was asked for its batched results when the scan stopped.
+    private boolean mFlushRequested;
+
+    private long mScanCount;
+    private long mCallbackCount;
+    private long mResultCount;
+    private long mDeliveryCount;
+    private long mFailureCount;
+    private long mScanMs;
+
+    private final Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    private final ScanCallback mScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            synchronized (ClockScanner.this) {
+                if (mScanner == null) return;
+                mCallbackCount++;
+                addLocked(result);
+                scheduleLocked(mWindowMs);
+            }
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            synchronized (ClockScanner.this) {
+                if (mScanner == null && !mFlushRequested) return;
+                mFlushRequested = false;
+                mCallbackCount++;
+                for (ScanResult result : results) {
+                    addLocked(result);
+                }
+                scheduleLocked(0);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Scan failed: " + errorCode);
+            synchronized (ClockScanner.this) {
+                mFailureCount++;
+                stopLocked();
+            }
+            mListener.onScanFailed(errorCode);
+        }
+    };
+
+    /**
+     * @param handler Handler of the thread the listener is called on.
+     */
+    public ClockScanner(BluetoothAdapter adapter, Handler handler, Listener listener) {
+        mBluetoothAdapter = adapter;
+        mHandler = handler;
+        mListener = listener;
+        mFilters = Collections.singletonList(
+                new ScanFilter.Builder().setServiceUuid(HM_10_SERVICE).build());
+    }
+
+    /**
+     * @param scanMode One of the {@code ScanSettings.SCAN_MODE_} constants, used from the next
+     *                 {@link #start()}.
+     */
+    public synchronized void setScanMode(int scanMode) {
+        mScanMode = scanMode;
+    }
+
+    public synchronized int getScanMode() {
+        return mScanMode;
+    }
+
+    /**
+     * @param delayMs Longest time a result may wait to be delivered, 0 for
+     *                {@link #FRAME_MS}. Used from the next {@link #start()}.
+     */
+    public synchronized void setReportDelay(long delayMs) {
+        if (delayMs < 0) throw new IllegalArgumentException("Invalid delay " + delayMs);
+        mReportDelayMs = delayMs;
+    }
+
+    /**
+     * @return false if Bluetooth is off.
+     */
+    public synchronized boolean start() {
+        if (mScanner != null) return true;
+        final BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            Log.w(TAG, "Bluetooth is off, can't scan");
+            return false;
+        }
+        if (mScanCount == 0 && !mBluetoothAdapter.isOffloadedFilteringSupported()) {
+            Log.i(TAG, "No hardware filtering, the stack filters scan results");
+        }
+        final ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(mScanMode)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+        if (mReportDelayMs > FRAME_MS && mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(mReportDelayMs);
+            mWindowMs = 0;
+        } else {
+            mWindowMs = Math.max(FRAME_MS, mReportDelayMs);
+        }
+        mScanner = scanner;
+        mStartedAtMs = SystemClock.elapsedRealtime();
+        mScanCount++;
+        scanner.startScan(mFilters, settings.build(), mScanCallback);
+        return true;
+    }
+
+    /**
+     * Stops scanning. Results still waiting for their batch are delivered before this returns,
+     * so call it on the handler's thread; those batched in the controller follow as soon as it
+     * hands them over. Restarting with another scan mode doesn't lose any result.
+     */
+    public void stop() {
+        synchronized (this) {
+            stopLocked();
+            mHandler.removeCallbacks(mDeliverRunnable);
+        }
+        deliver();
+    }
+
+    public synchronized boolean isScanning() {
+        return mScanner != null;
+    }
+
+    public synchronized Metrics getMetrics() {
+        final long currentMs = mScanner != null
+                ? SystemClock.elapsedRealtime() - mStartedAtMs : 0;
+        return new Metrics(mScanCount, mCallbackCount, mResultCount, mDeliveryCount,
+                mFailureCount, mScanMs + currentMs);
+    }
+
+    private void stopLocked() {
+        if (mScanner == null) return;
+        // Throws if Bluetooth was turned off in the meantime.
+        if (mBluetoothAdapter.isEnabled()) {
+            if (mWindowMs == 0) {
+                // Batched results come through onBatchScanResults, accepted after the stop.
+                mScanner.flushPendingScanResults(mScanCallback);
+                mFlushRequested = true;
+            }
+            mScanner.stopScan(mScanCallback);
+        }
+        mScanMs += SystemClock.elapsedRealtime() - mStartedAtMs;
+        mScanner = null;
+    }
+
+    private void addLocked(ScanResult result) {
+        mResultCount++;
+        final String address = result.getDevice().getAddress();
+        // Keep the first-seen order, with the latest result.
+        mPending.put(address, result);
+    }
+
+    private void scheduleLocked(long delayMs) {
+        if (mDeliveryScheduled) {
+            if (delayMs > 0) return;
+            mHandler.removeCallbacks(mDeliverRunnable);
+        }
+        mDeliveryScheduled = true;
+        mHandler.postDelayed(mDeliverRunnable, delayMs);
+    }
+
+    private void deliver() {
+        final List<ScanResult> results;
+        synchronized (this) {
+            mDeliveryScheduled = false;
+            if (mPending.isEmpty()) return;
+            results = new ArrayList<ScanResult>(mPending.values());
+            mPending.clear();
+            mDeliveryCount++;
+        }
+        mListener.onDevicesFound(results);
+    }
+}
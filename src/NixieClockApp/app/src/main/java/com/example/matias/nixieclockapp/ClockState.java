@@ -0,0 +1,146 @@
+package com.example.matias.nixieclockapp;
+
+/**
+ * Authoritative client side copy of one clock's configuration.
+ *
+ * Every field carries two versions: the local one, bumped on each change made through the
+ * setters, and the one the clock acknowledged last. Together they form the version vector the
+ * delta sync works from: a field is dirty while its acknowledged version is behind, and only
+ * dirty fields are sent. Fields never set locally are left to the clock. When the clock reports
+ * a value that differs from the model, the field becomes dirty again so the model wins on the
+ * next sync.
+ *
+ * The time of day isn't part of the model, it's set with {@code TimeSyncEngine}.
+ */
+public class ClockState {
+    public static final int FIELD_BRIGHTNESS = 0;
+    public static final int FIELD_MODE_24H = 1;
+    public static final int FIELD_COUNT = 2;
+
+    // Firmware values after a power cycle.
+    public static final int DEFAULT_BRIGHTNESS = 255;
+    public static final boolean DEFAULT_MODE_24H = true;
+
+    private final int[] mValues = {DEFAULT_BRIGHTNESS, DEFAULT_MODE_24H ? 1 : 0};
+    private final long[] mVersions = new long[FIELD_COUNT];
+    private final long[] mSyncedVersions = new long[FIELD_COUNT];
+    // Last value reported or acknowledged by the clock, -1 if not known.
+    private final int[] mClockValues = {-1, -1};
+
+    public synchronized int getBrightness() {
+        return mValues[FIELD_BRIGHTNESS];
+    }
+
+    /**
+     * @param level 0 (tubes off) to 255 (full brightness).
+     */
+    public synchronized void setBrightness(int level) {
+        if (level < 0 || level > 255) {
+            throw new IllegalArgumentException("Invalid brightness " + level);
+        }
+        setLocked(FIELD_BRIGHTNESS, level);
+    }
+
+    public synchronized boolean isMode24h() {
+        return mValues[FIELD_MODE_24H] == 1;
+    }
+
+    public synchronized void setMode24h(boolean enabled) {
+        setLocked(FIELD_MODE_24H, enabled ? 1 : 0);
+    }
+
+    /**
+     * @return true if the field was ever set locally, i.e. the model owns it.
+     */
+    public synchronized boolean isSet(int field) {
+        return mVersions[field] > 0;
+    }
+
+    /**
+     * @return true if the field has changes the clock hasn't acknowledged.
+     */
+    public synchronized boolean isDirty(int field) {
+        return mSyncedVersions[field] < mVersions[field];
+    }
+
+    public synchronized boolean hasLocalFields() {
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            if (mVersions[i] > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Copy of the local version of every field.
+     */
+    public synchronized long[] getVersionVector() {
+        return mVersions.clone();
+    }
+
+    /**
+     * @return Copy of the version of every field the clock acknowledged.
+     */
+    public synchronized long[] getSyncedVersionVector() {
+        return mSyncedVersions.clone();
+    }
+
+    /**
+     * @return Last value the clock reported or acknowledged for the field, -1 if not known.
+     */
+    public synchronized int getClockValue(int field) {
+        return mClockValues[field];
+    }
+
+    synchronized int getValue(int field) {
+        return mValues[field];
+    }
+
+    /**
+     * Records a value read back from the clock.
+     */
+    synchronized void onClockValue(int field, int value) {
+        mClockValues[field] = value;
+        if (mVersions[field] == 0) {
+            // Not owned by the model, follow the clock.
+            mValues[field] = value;
+        } else if (value == mValues[field]) {
+            mSyncedVersions[field] = mVersions[field];
+        } else {
+            mSyncedVersions[field] = 0;
+        }
+    }
+
+    /**
+     * Records that the clock applied {@code value}, sent at local version {@code version}.
+     */
+    synchronized void onSynced(int field, long version, int value) {
+        mClockValues[field] = value;
+        if (version > mSyncedVersions[field]) {
+            mSyncedVersions[field] = version;
+        }
+    }
+
+    /**
+     * Forgets what the clock holds, e.g. after it lost power. Owned fields become dirty.
+     */
+    synchronized void invalidate() {
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            mClockValues[i] = -1;
+            mSyncedVersions[i] = 0;
+        }
+    }
+
+    private void setLocked(int field, int value) {
+        if (mVersions[field] > 0 && mValues[field] == value) return;
+        mValues[field] = value;
+        mVersions[field]++;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ClockState{brightness=" + mValues[FIELD_BRIGHTNESS]
+                + " v" + mSyncedVersions[FIELD_BRIGHTNESS] + "/" + mVersions[FIELD_BRIGHTNESS]
+                + " mode24h=" + (mValues[FIELD_MODE_24H] == 1)
+                + " v" + mSyncedVersions[FIELD_MODE_24H] + "/" + mVersions[FIELD_MODE_24H] + "}";
+    }
+}
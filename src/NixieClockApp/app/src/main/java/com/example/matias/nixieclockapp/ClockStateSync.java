@@ -0,0 +1,142 @@
+package com.example.matias.nixieclockapp;
+
+import android.util.Log;
+
+import com.example.matias.nixieclockapp.protocol.Frame;
+
+/**
+ * Brings one clock in line with its {@link ClockState}.
+ *
+ * {@link #push} sends the dirty fields as one {@code SettingsBatch}. {@link #reconcile}, run on
+ * reconnect, first reads the clock's settings with {@code OP_GET_SETTINGS}, so fields the clock
+ * still holds aren't sent again, then pushes the rest.
+ */
+public class ClockStateSync {
+    private final static String TAG = ClockStateSync.class.getSimpleName();
+
+    /**
+     * Outcome of a sync. Called on a binder thread or the session's handler thread.
+     */
+    public interface Callback {
+        /**
+         * @param fieldsSent Number of fields that had to be sent, 0 if the clock was current.
+         */
+        void onStateSynced(int fieldsSent);
+
+        /**
+         * @param status {@code GattOperation.STATUS_REJECTED} if the clock refused the request,
+         *               otherwise a {@link FrameChannel} failure.
+         */
+        void onStateSyncFailed(int status);
+    }
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final ClockState mState;
+    private final FrameChannel mChannel;
+
+    ClockStateSync(ClockState state, FrameChannel channel) {
+        mState = state;
+        mChannel = channel;
+    }
+
+    /**
+     * Reads the clock's settings, then sends the fields that differ from the model.
+     *
+     * @param callback Outcome, may be null.
+     */
+    void reconcile(final Callback callback) {
+        final int sequence = mChannel.send(Frame.OP_GET_SETTINGS, NO_PAYLOAD, 0, 0,
+                new FrameChannel.ResponseCallback() {
+                    @Override
+                    public void onResponse(Frame response, long receivedAtNanos) {
+                        if (response.getOpcode() != Frame.OP_SETTINGS) {
+                            fail(callback, GattOperation.STATUS_REJECTED);
+                            return;
+                        }
+                        readSettings(response);
+                        push(callback);
+                    }
+
+                    @Override
+                    public void onFailure(int status) {
+                        fail(callback, status);
+                    }
+                }, FrameChannel.DEFAULT_RESPONSE_TIMEOUT_MS);
+        if (sequence < 0) fail(callback, GattOperation.STATUS_REJECTED);
+    }
+
+    /**
+     * Sends the fields the clock hasn't acknowledged yet.
+     *
+     * @param callback Outcome, may be null.
+     */
+    void push(final Callback callback) {
+        final SettingsBatch batch = new SettingsBatch(mChannel);
+        final long[] versions = new long[ClockState.FIELD_COUNT];
+        final int[] values = new int[ClockState.FIELD_COUNT];
+        // Snapshot under the model's lock; changes made while the batch is in flight get a
+        // newer version and stay dirty.
+        synchronized (mState) {
+            for (int field = 0; field < ClockState.FIELD_COUNT; field++) {
+                if (!mState.isDirty(field)) continue;
+                versions[field] = mState.getVersionVector()[field];
+                values[field] = mState.getValue(field);
+                switch (field) {
+                    case ClockState.FIELD_BRIGHTNESS:
+                        batch.brightness(values[field]);
+                        break;
+                    case ClockState.FIELD_MODE_24H:
+                        batch.mode24h(values[field] == 1);
+                        break;
+                }
+            }
+        }
+        final int count = batch.size();
+        if (count == 0) {
+            if (callback != null) callback.onStateSynced(0);
+            return;
+        }
+        final boolean queued = batch.commit(new SettingsBatch.Callback() {
+            @Override
+            public void onCommitted() {
+                for (int field = 0; field < ClockState.FIELD_COUNT; field++) {
+                    if (versions[field] > 0) {
+                        mState.onSynced(field, versions[field], values[field]);
+                    }
+                }
+                Log.i(TAG, "Sent " + count + " field(s): " + mState);
+                if (callback != null) callback.onStateSynced(count);
+            }
+
+            @Override
+            public void onFailed(int status, int error, int item) {
+                fail(callback, status);
+            }
+        });
+        if (!queued) fail(callback, GattOperation.STATUS_REJECTED);
+    }
+
+    private void readSettings(Frame response) {
+        final int length = response.getLength();
+        for (int i = 0; i + 2 <= length; ) {
+            final int setting = response.getPayloadByte(i);
+            final int valueLength = response.getPayloadByte(i + 1);
+            if (i + 2 + valueLength > length) break;
+            if (valueLength == 1) {
+                final int value = response.getPayloadByte(i + 2);
+                if (setting == Frame.SETTING_BRIGHTNESS) {
+                    mState.onClockValue(ClockState.FIELD_BRIGHTNESS, value);
+                } else if (setting == Frame.SETTING_MODE_24H) {
+                    mState.onClockValue(ClockState.FIELD_MODE_24H, value);
+                }
+            }
+            i += 2 + valueLength;
+        }
+    }
+
+    private void fail(Callback callback, int status) {
+        Log.w(TAG, "State sync failed: " + status);
+        if (callback != null) callback.onStateSyncFailed(status);
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Picks the connection interval from the traffic waiting in the {@code GattOperationQueue}.
+ *
+ * A backlog of at least {@link #HIGH_PRIORITY_DEPTH} operations switches the link to
+ * {@code CONNECTION_PRIORITY_HIGH} (7.5-15 ms interval) so bursts drain quickly; once the queue
+ * has been empty for {@link #IDLE_TIMEOUT_MS} the link drops to
+ * {@code CONNECTION_PRIORITY_LOW_POWER}. Traffic on a low power link first goes back to
+ * {@code CONNECTION_PRIORITY_BALANCED}, so a single command doesn't pay for a full burst mode.
+ * The idle timeout doubles as hysteresis, keeping the controller from flapping between bursts.
+ *
+ * On Android 8.0+ the controller also asks for the LE 2M PHY when the adapter supports it.
+ */
+public class ConnectionPriorityController implements GattOperationQueue.DepthListener {
+    private final static String TAG = ConnectionPriorityController.class.getSimpleName();
+
+    public static final int HIGH_PRIORITY_DEPTH = 4;
+    public static final long IDLE_TIMEOUT_MS = 2000;
+
+    private static final int PRIORITY_UNKNOWN = -1;
+    private static final int PRIORITY_COUNT = 3;
+
+    private final Handler mHandler;
+    private BluetoothGatt mGatt;
+    private int mPriority = PRIORITY_UNKNOWN;
+    private long mPrioritySinceMs;
+    private boolean mIdleScheduled;
+
+    private final long[] mRequestCount = new long[PRIORITY_COUNT];
+    private final long[] mTimeInPriorityMs = new long[PRIORITY_COUNT];
+    private long mFailedRequestCount;
+    private int mTxPhy = BluetoothDevice.PHY_LE_1M;
+    private int mRxPhy = BluetoothDevice.PHY_LE_1M;
+
+    private final Runnable mIdleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ConnectionPriorityController.this) {
+                mIdleScheduled = false;
+                requestPriorityLocked(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, "idle");
+            }
+        }
+    };
+
+    /**
+     * Snapshot of the controller's decisions.
+     */
+    public static class Metrics {
+        public final int priority;
+        public final long highRequests;
+        public final long balancedRequests;
+        public final long lowPowerRequests;
+        public final long failedRequests;
+        public final long highMs;
+        public final long balancedMs;
+        public final long lowPowerMs;
+        public final int txPhy;
+        public final int rxPhy;
+
+        Metrics(int priority, long[] requests, long failedRequests, long[] timeMs,
+                int txPhy, int rxPhy) {
+            this.priority = priority;
+            this.highRequests = requests[BluetoothGatt.CONNECTION_PRIORITY_HIGH];
+            this.balancedRequests = requests[BluetoothGatt.CONNECTION_PRIORITY_BALANCED];
+            this.lowPowerRequests = requests[BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER];
+            this.failedRequests = failedRequests;
+            this.highMs = timeMs[BluetoothGatt.CONNECTION_PRIORITY_HIGH];
+            this.balancedMs = timeMs[BluetoothGatt.CONNECTION_PRIORITY_BALANCED];
+            this.lowPowerMs = timeMs[BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER];
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+        }
+
+        @Override
+        public String toString() {
+            return "priority=" + priority
+                    + " requests(high/balanced/low)=" + highRequests + "/" + balancedRequests
+                    + "/" + lowPowerRequests + " failed=" + failedRequests
+                    + " ms(high/balanced/low)=" + highMs + "/" + balancedMs + "/" + lowPowerMs
+                    + " phy(tx/rx)=" + txPhy + "/" + rxPhy;
+        }
+    }
+
+    public ConnectionPriorityController(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Starts managing a connection. Called once services have been discovered.
+     */
+    public synchronized void attach(BluetoothGatt gatt, BluetoothAdapter adapter) {
+        mGatt = gatt;
+        mPriority = PRIORITY_UNKNOWN;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && adapter.isLe2MPhySupported()) {
+            Log.i(TAG, "Requesting LE 2M PHY");
+            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                    BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+        scheduleIdleLocked();
+    }
+
+    /**
+     * Stops managing the current connection.
+     */
+    public synchronized void detach() {
+        accountTimeLocked();
+        cancelIdleLocked();
+        mGatt = null;
+        mPriority = PRIORITY_UNKNOWN;
+        mTxPhy = BluetoothDevice.PHY_LE_1M;
+        mRxPhy = BluetoothDevice.PHY_LE_1M;
+    }
+
+    /**
+     * Called from {@code BluetoothGattCallback#onPhyUpdate}.
+     */
+    public synchronized void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mTxPhy = txPhy;
+            mRxPhy = rxPhy;
+            Log.i(TAG, "PHY updated, tx=" + txPhy + " rx=" + rxPhy);
+        } else {
+            Log.w(TAG, "onPhyUpdate received: " + status);
+        }
+    }
+
+    @Override
+    public synchronized void onQueueDepthChanged(int depth) {
+        if (mGatt == null) return;
+        if (depth == 0) {
+            scheduleIdleLocked();
+            return;
+        }
+        cancelIdleLocked();
+        if (depth >= HIGH_PRIORITY_DEPTH) {
+            requestPriorityLocked(BluetoothGatt.CONNECTION_PRIORITY_HIGH, "depth " + depth);
+        } else if (mPriority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER
+                || mPriority == PRIORITY_UNKNOWN) {
+            requestPriorityLocked(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, "depth " + depth);
+        }
+    }
+
+    public synchronized Metrics getMetrics() {
+        accountTimeLocked();
+        return new Metrics(mPriority, mRequestCount.clone(), mFailedRequestCount,
+                mTimeInPriorityMs.clone(), mTxPhy, mRxPhy);
+    }
+
+    private void requestPriorityLocked(int priority, String reason) {
+        if (mGatt == null || mPriority == priority) return;
+        if (!mGatt.requestConnectionPriority(priority)) {
+            mFailedRequestCount++;
+            Log.w(TAG, "requestConnectionPriority(" + priority + ") rejected");
+            return;
+        }
+        accountTimeLocked();
+        mPriority = priority;
+        mRequestCount[priority]++;
+        Log.i(TAG, "Connection priority " + priority + " (" + reason + "): " + metricsLocked());
+    }
+
+    private void accountTimeLocked() {
+        final long now = SystemClock.elapsedRealtime();
+        if (mPriority != PRIORITY_UNKNOWN) {
+            mTimeInPriorityMs[mPriority] += now - mPrioritySinceMs;
+        }
+        mPrioritySinceMs = now;
+    }
+
+    private String metricsLocked() {
+        return new Metrics(mPriority, mRequestCount, mFailedRequestCount, mTimeInPriorityMs,
+                mTxPhy, mRxPhy).toString();
+    }
+
+    private void scheduleIdleLocked() {
+        if (mIdleScheduled || mPriority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) return;
+        mIdleScheduled = true;
+        mHandler.postDelayed(mIdleRunnable, IDLE_TIMEOUT_MS);
+    }
+
+    private void cancelIdleLocked() {
+        if (!mIdleScheduled) return;
+        mIdleScheduled = false;
+        mHandler.removeCallbacks(mIdleRunnable);
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.matias.nixieclockapp;
+
+/**
+ * Credit based pacing for writes to the clock. Neither kind of write is acknowledged by the
+ * Arduino, so nothing stops the phone from outrunning the HM-10: the module forwards every
+ * packet to the Arduino over its UART, and anything arriving while the serial buffer is full is
+ * lost. A write with response only waits for the module itself.
+ *
+ * The controller models that buffer. It starts with {@code capacity} credits (one per byte),
+ * every write spends credits, and credits come back at the rate the UART drains the buffer.
+ * A write that doesn't fit is held back until enough credits have been returned.
+ *
+ * Times are passed in by the caller (normally {@code SystemClock.uptimeMillis()}).
+ */
+public class CreditFlowController {
+    // Arduino's hardware serial receive buffer.
+    public static final int DEFAULT_CAPACITY_BYTES = 64;
+    // The firmware opens the serial port at 9600 baud, 8N1 -> 960 bytes/s.
+    public static final int DEFAULT_DRAIN_BYTES_PER_SECOND = 960;
+
+    private final int mCapacity;
+    private final int mDrainBytesPerSecond;
+    private double mCredits;
+    private long mLastRefillMs;
+
+    private long mBytesSent;
+    private long mThrottledCount;
+
+    public CreditFlowController() {
+        this(DEFAULT_CAPACITY_BYTES, DEFAULT_DRAIN_BYTES_PER_SECOND);
+    }
+
+    /**
+     * @param capacity Size of the receiver's buffer in bytes.
+     * @param drainBytesPerSecond Rate at which the receiver empties that buffer.
+     */
+    public CreditFlowController(int capacity, int drainBytesPerSecond) {
+        if (capacity <= 0 || drainBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("capacity and drain rate must be positive");
+        }
+        mCapacity = capacity;
+        mDrainBytesPerSecond = drainBytesPerSecond;
+        mCredits = capacity;
+        mLastRefillMs = -1;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getDrainBytesPerSecond() {
+        return mDrainBytesPerSecond;
+    }
+
+    /**
+     * Spends {@code bytes} credits if they are available. Writes must be split so none is
+     * larger than {@link #getCapacity()}: a bigger one would overflow even an empty buffer.
+     *
+     * @return 0 if the credits were spent and the write may go out now, otherwise the number
+     *         of milliseconds to wait before trying again.
+     */
+    public synchronized long tryAcquire(int bytes, long nowMs) {
+        if (bytes > mCapacity) {
+            throw new IllegalArgumentException("Write of " + bytes
+                    + " bytes exceeds the buffer of " + mCapacity);
+        }
+        refill(nowMs);
+        if (mCredits >= bytes) {
+            mCredits -= bytes;
+            mBytesSent += bytes;
+            return 0;
+        }
+        mThrottledCount++;
+        final double missing = bytes - mCredits;
+        return Math.max(1, (long) Math.ceil(missing * 1000.0 / mDrainBytesPerSecond));
+    }
+
+    /**
+     * Returns the controller to a full buffer, e.g. after a reconnect.
+     */
+    public synchronized void reset() {
+        mCredits = mCapacity;
+        mLastRefillMs = -1;
+    }
+
+    public synchronized int getAvailableCredits(long nowMs) {
+        refill(nowMs);
+        return (int) Math.max(0, mCredits);
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return Number of times a write had to wait for credits.
+     */
+    public synchronized long getThrottledCount() {
+        return mThrottledCount;
+    }
+
+    private void refill(long nowMs) {
+        if (mLastRefillMs >= 0 && nowMs > mLastRefillMs) {
+            mCredits = Math.min(mCapacity,
+                    mCredits + (nowMs - mLastRefillMs) * mDrainBytesPerSecond / 1000.0);
+        }
+        mLastRefillMs = nowMs;
+    }
+}
@@ -19,11 +19,8 @@ package com.example.matias.nixieclockapp;
 import android.app.Activity;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -39,6 +36,12 @@ import android.widget.EditText;
 import android.widget.ExpandableListView;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.Toast;
+
+import com.example.matias.nixieclockapp.protocol.Frame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
 import java.util.UUID;
 
 import java.util.ArrayList;
@@ -94,6 +97,9 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            mBluetoothLeService.addGattEventListener(mGattEventListener);
+            mBluetoothLeService.getNotificationDispatcher().subscribeOnFrame(mDataSubscriber,
+                    mDeviceAddress);
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
         }
@@ -104,39 +110,83 @@ public class DeviceControlActivity extends Activity {
         }
     };
 
-    /* Handles various events fired by the Service.
-     * ACTION_GATT_CONNECTED: connected to a GATT server.
-     * ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-     * ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-     * ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-     *                       or notification operations.
+    /* Handles various events fired by the Service. They arrive on binder threads and are
+     * handed to the UI thread.
+     * onConnected: connected to a GATT server.
+     * onDisconnected: disconnected from a GATT server.
+     * onServicesDiscovered: discovered GATT services.
+     * onDataAvailable: received data from the device.  This can be a result of read
+     *                  or notification operations.
      */
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    private final GattEventListener mGattEventListener = new GattEventListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
-                Log.d(TAG, "Connected");
-
-                invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                mConnected = false;
-                Log.d(TAG, "Disconnected");
-                invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Show all the supported services and characteristics on the user interface.
-                displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                // Here is where received data could be analyzed.
-                // e.g. Echo back received data, with something inserted
-//                final byte[] rxBytes = bluetoothGattCharacteristicHM_10.getValue();
-//                final byte[] insertSomething = {(byte)'\n'};
-//                byte[] txBytes = new byte[insertSomething.length + rxBytes.length];
-//                System.arraycopy(insertSomething, 0, txBytes, 0, insertSomething.length);
-//                System.arraycopy(rxBytes, 0, txBytes, insertSomething.length, rxBytes.length);
+        public void onConnected(String address) {
+            // The service may be connected to other clocks as well; only follow this one.
+            if (!address.equals(mDeviceAddress)) return;
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mConnected = true;
+                    Log.d(TAG, "Connected");
+                    invalidateOptionsMenu();
+                }
+            });
+        }
 
-            }
+        @Override
+        public void onDisconnected(String address, int status) {
+            if (!address.equals(mDeviceAddress)) return;
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mConnected = false;
+                    Log.d(TAG, "Disconnected");
+                    invalidateOptionsMenu();
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+            if (!address.equals(mDeviceAddress)) return;
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mBluetoothLeService == null) return;
+                    // The service already resolved the HM-10 characteristic; only walk all the
+                    // supported services and characteristics if the device doesn't expose it.
+                    bluetoothGattCharacteristicHM_10 =
+                            mBluetoothLeService.getClockCharacteristic();
+                    if (bluetoothGattCharacteristicHM_10 == null) {
+                        displayGattServices(mBluetoothLeService.getSupportedGattServices());
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDataAvailable(String address, BluetoothGattCharacteristic characteristic,
+                                    ByteBuffer payload) {
+            // Handled once per frame by mDataSubscriber.
+        }
+    };
+
+    /* Receives the latest data from the device on the UI thread, at most once per display
+     * frame however fast the clock notifies.
+     */
+    private final NotificationDispatcher.Subscriber mDataSubscriber =
+            new NotificationDispatcher.Subscriber() {
+        @Override
+        public void onData(String address, ByteBuffer payload) {
+            // Here is where received data could be analyzed, in place; copy out what has to
+            // outlive this call.
+            // e.g. Echo back received data, with something inserted
+//            final byte[] rxBytes = new byte[payload.remaining()];
+//            payload.get(rxBytes);
+//            final byte[] insertSomething = {(byte)'\n'};
+//            byte[] txBytes = new byte[insertSomething.length + rxBytes.length];
+//            System.arraycopy(insertSomething, 0, txBytes, 0, insertSomething.length);
+//            System.arraycopy(rxBytes, 0, txBytes, insertSomething.length, rxBytes.length);
         }
     };
 
@@ -202,8 +252,10 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
+            mBluetoothLeService.addGattEventListener(mGattEventListener);
+            mBluetoothLeService.getNotificationDispatcher().subscribeOnFrame(mDataSubscriber,
+                    mDeviceAddress);
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
@@ -212,12 +264,19 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.removeGattEventListener(mGattEventListener);
+            mBluetoothLeService.getNotificationDispatcher().unsubscribe(mDataSubscriber);
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.removeGattEventListener(mGattEventListener);
+            mBluetoothLeService.getNotificationDispatcher().unsubscribe(mDataSubscriber);
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -228,9 +287,11 @@ public class DeviceControlActivity extends Activity {
         if (mConnected) {
             menu.findItem(R.id.menu_connect).setVisible(false);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
+            menu.findItem(R.id.menu_probe).setVisible(true);
         } else {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
+            menu.findItem(R.id.menu_probe).setVisible(false);
         }
         return true;
     }
@@ -244,6 +305,10 @@ public class DeviceControlActivity extends Activity {
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 return true;
+            case R.id.menu_probe:
+                // Only offered on request: the query jams clocks with the legacy firmware.
+                mBluetoothLeService.probeCapabilities();
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -318,15 +383,6 @@ public class DeviceControlActivity extends Activity {
         );
     }
 
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
-
     /**
      * sendSetTime function
      * Sends the selected hour and minutes through bluetooth
@@ -350,18 +406,39 @@ public class DeviceControlActivity extends Activity {
             Toast.makeText(getApplicationContext(), "Please type a valid time", Toast.LENGTH_SHORT).show();
         } else {
             // append both values in one variable
-            String hourMin = hour + "," + minutes; // coma delimiters help to distinguish numbers and end of frame
-
-            if(bluetoothGattCharacteristicHM_10 != null){
-                bluetoothGattCharacteristicHM_10.setValue(hourMin.getBytes());
-                mBluetoothLeService.writeCharacteristic(bluetoothGattCharacteristicHM_10);
-                mBluetoothLeService.setCharacteristicNotification(bluetoothGattCharacteristicHM_10,true);
+            // coma delimiters help to distinguish numbers and end of frame. The firmware expects
+            // exactly 5 characters, so single digits are zero padded.
+            String hourMin = String.format(Locale.US, "%02d,%02d",
+                    Integer.parseInt(hour), Integer.parseInt(minutes));
+
+            final ClockCapabilities capabilities = mBluetoothLeService.getCapabilities();
+            if (capabilities != null && capabilities.supports(Frame.OP_APPLY_SETTINGS)) {
+                // Binary firmware: acknowledged, and the seconds restart at 0.
+                mBluetoothLeService.batch().time(Integer.parseInt(hour),
+                        Integer.parseInt(minutes), 0).commit(mSetTimeCallback);
+                Log.d(TAG, "Time sent: " + hourMin);
+            } else if(bluetoothGattCharacteristicHM_10 != null){
+                // Notifications of the HM-10 are already enabled by the session on connect.
+                mBluetoothLeService.writeCharacteristic(bluetoothGattCharacteristicHM_10,
+                        hourMin.getBytes(StandardCharsets.US_ASCII), null);
                 Log.e(TAG, "Data Sent: " + hourMin);
             }
             Toast.makeText(getApplicationContext(), "Data Sent!", Toast.LENGTH_SHORT).show();
         }
     }
 
+    private final SettingsBatch.Callback mSetTimeCallback = new SettingsBatch.Callback() {
+        @Override
+        public void onCommitted() {
+            Log.d(TAG, "Time acknowledged");
+        }
+
+        @Override
+        public void onFailed(int status, int error, int item) {
+            Log.w(TAG, "Time refused: " + status + ", error " + error);
+        }
+    };
+
     /*************************************  onClick Event Listeners  *************************************/
 
     /**
@@ -0,0 +1,131 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices seen by a scan, in the order they were first seen, keyed by address. Adding a device
+ * and updating one already known are both a single map lookup, however many devices are in
+ * range, and positions never move, so a list can bind rows by position.
+ *
+ * Every device gets an id that stays the same for as long as the registry remembers it, for
+ * adapters with stable ids. {@link Entry} instances are immutable; an update replaces the entry,
+ * so a {@link #snapshot()} can be read from another thread.
+ *
+ * Not thread safe; used from the main thread.
+ */
+public class DeviceRegistry {
+
+    /**
+     * What the last advertisement of a device said.
+     */
+    public static class Entry {
+        public final long id;
+        public final BluetoothDevice device;
+        // Advertised name, or the one the stack knows; null if neither is known.
+        public final String name;
+        public final int rssi;
+        // elapsedRealtime() of the last advertisement.
+        public final long lastSeenMs;
+        // Raw advertisement and scan response, null if the stack didn't report them.
+        public final byte[] advertisement;
+        final int position;
+
+        Entry(long id, int position, BluetoothDevice device, String name, int rssi,
+              long lastSeenMs, byte[] advertisement) {
+            this.id = id;
+            this.position = position;
+            this.device = device;
+            this.name = name;
+            this.rssi = rssi;
+            this.lastSeenMs = lastSeenMs;
+            this.advertisement = advertisement;
+        }
+
+        public String getAddress() {
+            return device.getAddress();
+        }
+    }
+
+    private final Map<String, Entry> mByAddress = new HashMap<String, Entry>();
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private long mNextId;
+
+    /**
+     * Adds the device of {@code result}, or updates it with the newer advertisement.
+     *
+     * @return true if the device wasn't known.
+     */
+    public boolean update(ScanResult result) {
+        final BluetoothDevice device = result.getDevice();
+        final String address = device.getAddress();
+        final ScanRecord record = result.getScanRecord();
+        final byte[] advertisement = record != null ? record.getBytes() : null;
+        final long lastSeenMs = result.getTimestampNanos() / 1000000;
+
+        final Entry known = mByAddress.get(address);
+        // BluetoothDevice.getName() is a call into the Bluetooth service, only made once per
+        // device when the advertisement doesn't carry a name.
+        String name = record != null ? record.getDeviceName() : null;
+        if (name == null) {
+            name = known != null ? known.name : device.getName();
+        }
+        final Entry entry;
+        if (known == null) {
+            entry = new Entry(mNextId++, mEntries.size(), device, name, result.getRssi(),
+                    lastSeenMs, advertisement);
+            mEntries.add(entry);
+        } else {
+            entry = new Entry(known.id, known.position, device, name, result.getRssi(),
+                    lastSeenMs, advertisement);
+            mEntries.set(known.position, entry);
+        }
+        mByAddress.put(address, entry);
+        return known == null;
+    }
+
+    public Entry get(int position) {
+        return mEntries.get(position);
+    }
+
+    /**
+     * @return The device with {@code address}, or null if it wasn't seen.
+     */
+    public Entry get(String address) {
+        return mByAddress.get(address);
+    }
+
+    /**
+     * @return Position of the device with {@code address}, or -1 if it wasn't seen.
+     */
+    public int indexOf(String address) {
+        final Entry entry = mByAddress.get(address);
+        return entry != null ? entry.position : -1;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Forgets every device. Ids aren't reused, so rows of old devices never match new ones.
+     */
+    public void clear() {
+        mByAddress.clear();
+        mEntries.clear();
+    }
+
+    /**
+     * @return The devices as of now, in position order; unaffected by later updates.
+     */
+    public List<Entry> snapshot() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(mEntries));
+    }
+}
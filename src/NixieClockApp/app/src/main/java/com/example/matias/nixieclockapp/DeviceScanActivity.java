@@ -17,40 +17,49 @@
 package com.example.matias.nixieclockapp;
 
 import android.app.Activity;
-import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
  */
-public class DeviceScanActivity extends ListActivity {
+public class DeviceScanActivity extends Activity {
     private LeDeviceListAdapter mLeDeviceListAdapter;
+    // Computes the list diffs off the main thread.
+    private HandlerThread mDiffThread;
+    private Handler mDiffHandler;
     private BluetoothAdapter mBluetoothAdapter;
+    private ScanScheduler mScanScheduler;
     private boolean mScanning;
     private Handler mHandler;
 
     private static final int REQUEST_ENABLE_BT = 1;
-    // Stops scanning after 10 seconds.
-    private static final long SCAN_PERIOD = 10000;
+
+    // The clock picked last; scans started on their own stop as soon as it shows up.
+    private static final String PREFS_NAME = "device_scan";
+    private static final String KEY_LAST_ADDRESS = "last_address";
 
     private static final int PERMISSION_REQUEST_COARSE_LOCATION = 1;
 
@@ -60,6 +69,15 @@ public class DeviceScanActivity extends ListActivity {
         super.onCreate(savedInstanceState);
 //        getActionBar().setTitle(R.string.title_devices);
         mHandler = new Handler();
+        mDiffThread = new HandlerThread("DeviceListDiff");
+        mDiffThread.start();
+        mDiffHandler = new Handler(mDiffThread.getLooper());
+
+        setContentView(R.layout.activity_devicelist);
+        final RecyclerView deviceList = (RecyclerView) findViewById(R.id.device_list);
+        deviceList.setLayoutManager(new LinearLayoutManager(this));
+        mLeDeviceListAdapter = new LeDeviceListAdapter();
+        deviceList.setAdapter(mLeDeviceListAdapter);
 
         requestPermissions(new String[]{android.Manifest.permission.ACCESS_COARSE_LOCATION}, PERMISSION_REQUEST_COARSE_LOCATION);
 
@@ -82,6 +100,7 @@ public class DeviceScanActivity extends ListActivity {
             finish();
             return;
         }
+        mScanScheduler = new ScanScheduler(mBluetoothAdapter, mHandler, mScanListener);
     }
 
     @Override
@@ -128,10 +147,15 @@ public class DeviceScanActivity extends ListActivity {
             }
         }
 
-        // Initializes list view adapter.
-        mLeDeviceListAdapter = new LeDeviceListAdapter();
-        setListAdapter(mLeDeviceListAdapter);
-        scanLeDevice(true);
+        // Coming back to the screen: the clock used last is most likely the one wanted.
+        scanLeDevice(true, getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getString(KEY_LAST_ADDRESS, null));
+    }
+
+    @Override
+    protected void onDestroy() {
+        mDiffThread.quitSafely();
+        super.onDestroy();
     }
 
     @Override
@@ -151,127 +175,248 @@ public class DeviceScanActivity extends ListActivity {
         mLeDeviceListAdapter.clear();
     }
 
-    @Override
-    protected void onListItemClick(ListView l, View v, int position, long id) {
+    private void onDeviceClick(int position) {
         final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
         if (device == null) return;
         final Intent intent = new Intent(this, DeviceControlActivity.class);
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
+        getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(KEY_LAST_ADDRESS, device.getAddress()).apply();
 
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanScheduler.stop();
             mScanning = false;
         }
         startActivity(intent);
     }
 
     private void scanLeDevice(final boolean enable) {
-        if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
+        scanLeDevice(enable, null);
+    }
 
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+    /**
+     * @param targetAddress Clock the scan stops at once seen, null to look for every clock.
+     */
+    private void scanLeDevice(final boolean enable, String targetAddress) {
+        if (enable) {
+            // The scheduler stops on its own, see ScanScheduler#MAX_SESSION_MS.
+            mScanning = mScanScheduler.start(targetAddress);
         } else {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanScheduler.stop();
         }
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
-    private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
-        private LayoutInflater mInflator;
+    // Adapter for holding devices found through scanning. The registry takes every result
+    // right away; the rows follow through a diff between the list shown and a snapshot of the
+    // registry, computed on the diff thread, so only rows that changed are bound again.
+    private class LeDeviceListAdapter extends RecyclerView.Adapter<ViewHolder> {
+        private final DeviceRegistry mLeDevices = new DeviceRegistry();
+        private final LayoutInflater mInflator;
+        // What the rows show. Only replaced together with dispatching the diff leading to it.
+        private List<DeviceRegistry.Entry> mShown = Collections.emptyList();
+        private boolean mDiffing;
+        private boolean mDiffPending;
+        // Bumped by clear(), so a diff of devices cleared in the meantime is dropped.
+        private int mGeneration;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
+            setHasStableIds(true);
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
+        /**
+         * Adds the devices of {@code results}, or refreshes their RSSI and advertisement.
+         */
+        public void addDevices(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                mLeDevices.update(result);
+            }
+            // One diff at a time; results arriving meanwhile go out with the next one.
+            if (mDiffing) {
+                mDiffPending = true;
+            } else {
+                diff();
             }
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mShown.get(position).device;
         }
 
         public void clear() {
             mLeDevices.clear();
+            mShown = Collections.emptyList();
+            mGeneration++;
+            mDiffing = false;
+            mDiffPending = false;
+            notifyDataSetChanged();
         }
 
-        @Override
-        public int getCount() {
-            return mLeDevices.size();
+        private void diff() {
+            final List<DeviceRegistry.Entry> oldList = mShown;
+            final List<DeviceRegistry.Entry> newList = mLeDevices.snapshot();
+            final int generation = mGeneration;
+            mDiffing = true;
+            mDiffPending = false;
+            mDiffHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Devices are only ever appended, so there are no moves to look for.
+                    final DiffUtil.DiffResult result = DiffUtil.calculateDiff(
+                            new DeviceDiffCallback(oldList, newList), false);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            apply(generation, newList, result);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void apply(int generation, List<DeviceRegistry.Entry> list,
+                           DiffUtil.DiffResult result) {
+            if (generation != mGeneration) return;
+            mDiffing = false;
+            mShown = list;
+            result.dispatchUpdatesTo(this);
+            if (mDiffPending) diff();
         }
 
         @Override
-        public Object getItem(int i) {
-            return mLeDevices.get(i);
+        public int getItemCount() {
+            return mShown.size();
         }
 
         @Override
         public long getItemId(int i) {
-            return i;
+            return mShown.get(i).id;
         }
 
         @Override
-        public View getView(int i, View view, ViewGroup viewGroup) {
-            ViewHolder viewHolder;
-            // General ListView optimization code.
-            if (view == null) {
-                view = mInflator.inflate(R.layout.listitem_device, null);
-                viewHolder = new ViewHolder();
-                viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
-                viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
-                view.setTag(viewHolder);
-            } else {
-                viewHolder = (ViewHolder) view.getTag();
-            }
+        public ViewHolder onCreateViewHolder(ViewGroup viewGroup, int viewType) {
+            final View view = mInflator.inflate(R.layout.listitem_device, viewGroup, false);
+            final ViewHolder viewHolder = new ViewHolder(view);
+            view.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    final int position = viewHolder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) onDeviceClick(position);
+                }
+            });
+            return viewHolder;
+        }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
-            if (deviceName != null && deviceName.length() > 0)
-                viewHolder.deviceName.setText(deviceName);
+        @Override
+        public void onBindViewHolder(ViewHolder viewHolder, int i) {
+            final DeviceRegistry.Entry entry = mShown.get(i);
+            if (entry.name != null && entry.name.length() > 0)
+                viewHolder.deviceName.setText(entry.name);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
+            viewHolder.deviceAddress.setText(entry.getAddress());
+            bindRssi(viewHolder, entry);
+        }
+
+        @Override
+        public void onBindViewHolder(ViewHolder viewHolder, int i, List<Object> payloads) {
+            if (payloads.isEmpty()) {
+                onBindViewHolder(viewHolder, i);
+            } else {
+                // Only DeviceDiffCallback.PAYLOAD_RSSI: leave the rest of the row alone.
+                bindRssi(viewHolder, mShown.get(i));
+            }
+        }
 
-            return view;
+        private void bindRssi(ViewHolder viewHolder, DeviceRegistry.Entry entry) {
+            viewHolder.deviceRssi.setText(getString(R.string.rssi_format, entry.rssi));
         }
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
+    /**
+     * Compares two snapshots of the registry by device id.
+     */
+    static class DeviceDiffCallback extends DiffUtil.Callback {
+        // Change payload of a row whose RSSI is all that changed.
+        static final Object PAYLOAD_RSSI = new Object();
+
+        private final List<DeviceRegistry.Entry> mOld;
+        private final List<DeviceRegistry.Entry> mNew;
+
+        DeviceDiffCallback(List<DeviceRegistry.Entry> oldList,
+                           List<DeviceRegistry.Entry> newList) {
+            mOld = oldList;
+            mNew = newList;
+        }
 
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return mOld.get(oldPosition).id == mNew.get(newPosition).id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            final DeviceRegistry.Entry oldEntry = mOld.get(oldPosition);
+            final DeviceRegistry.Entry newEntry = mNew.get(newPosition);
+            return oldEntry.rssi == newEntry.rssi && sameName(oldEntry, newEntry);
+        }
+
+        @Override
+        public Object getChangePayload(int oldPosition, int newPosition) {
+            return sameName(mOld.get(oldPosition), mNew.get(newPosition)) ? PAYLOAD_RSSI : null;
+        }
+
+        private static boolean sameName(DeviceRegistry.Entry a, DeviceRegistry.Entry b) {
+            return a.name == null ? b.name == null : a.name.equals(b.name);
+        }
+    }
+
+    // Device scan callback, on the main thread and at most once per frame. Only clocks get
+    // here: the scanner filters on the HM-10 service.
+    private final ScanScheduler.Listener mScanListener = new ScanScheduler.Listener() {
+        @Override
+        public void onDevicesFound(List<ScanResult> results) {
+            // One list update for the whole batch.
+            mLeDeviceListAdapter.addDevices(results);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            // The session ends right after, see onSessionFinished().
+        }
+
+        @Override
+        public void onSessionFinished(ScanScheduler.Report report) {
+            mScanning = false;
+            invalidateOptionsMenu();
         }
     };
 
-    static class ViewHolder {
-        TextView deviceName;
-        TextView deviceAddress;
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView deviceName;
+        final TextView deviceAddress;
+        final TextView deviceRssi;
+
+        ViewHolder(View view) {
+            super(view);
+            deviceName = (TextView) view.findViewById(R.id.device_name);
+            deviceAddress = (TextView) view.findViewById(R.id.device_address);
+            deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
+        }
     }
 
     /**
@@ -0,0 +1,188 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.example.matias.nixieclockapp.protocol.Frame;
+import com.example.matias.nixieclockapp.protocol.FrameEncoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Drives the six tubes directly from the phone, for counters, animations and live numbers.
+ *
+ * Frames use the layout of the firmware's {@code DisplayNumberString()}: six digits, index 0 the
+ * leftmost tube, packed two per byte as BCD into an {@code OP_DISPLAY} frame that fits a single
+ * write without response. At most one frame is on its way at a time and sends are spaced by the
+ * frame rate, up to {@link #MAX_FPS}; a frame submitted while another one waits replaces it, so
+ * under congestion the tubes skip frames instead of falling behind.
+ *
+ * The clock falls back to the time a second after the last frame, or right away on
+ * {@link #release()}.
+ */
+public class DisplayStreamer {
+    public static final int DIGITS = 6;
+    public static final int MAX_FPS = 30;
+    // Digit value that turns a tube off.
+    public static final int BLANK = 0xF;
+
+    /**
+     * Counters since the session was created.
+     */
+    public static class Metrics {
+        public final long framesSubmitted;
+        public final long framesSent;
+        public final long framesDropped;
+
+        Metrics(long framesSubmitted, long framesSent, long framesDropped) {
+            this.framesSubmitted = framesSubmitted;
+            this.framesSent = framesSent;
+            this.framesDropped = framesDropped;
+        }
+
+        @Override
+        public String toString() {
+            return "submitted=" + framesSubmitted + " sent=" + framesSent
+                    + " dropped=" + framesDropped;
+        }
+    }
+
+    private final GattSession mSession;
+    private final Handler mHandler;
+    // Latest frame not sent yet, BCD packed.
+    private final byte[] mPending = new byte[DIGITS / 2];
+    private final ByteBuffer mFrame = ByteBuffer.allocate(Frame.OVERHEAD + DIGITS / 2);
+    private boolean mHasPending;
+    private boolean mReleasePending;
+    private boolean mInFlight;
+    private boolean mScheduled;
+    private long mIntervalMs = 1000 / MAX_FPS;
+    private long mLastSentAtMs;
+    private int mSequence;
+
+    private long mFramesSubmitted;
+    private long mFramesSent;
+    private long mFramesDropped;
+
+    private final Runnable mSendRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendPending();
+        }
+    };
+
+    private final GattOperation.Callback mWriteCallback = new GattOperation.Callback() {
+        @Override
+        public void onComplete(GattOperation operation, int status) {
+            synchronized (DisplayStreamer.this) {
+                mInFlight = false;
+                scheduleLocked();
+            }
+        }
+    };
+
+    DisplayStreamer(GattSession session, Handler handler) {
+        mSession = session;
+        mHandler = handler;
+    }
+
+    /**
+     * @param fps Frames per second, 1 to {@link #MAX_FPS}.
+     */
+    public synchronized void setFrameRate(int fps) {
+        if (fps < 1 || fps > MAX_FPS) {
+            throw new IllegalArgumentException("Invalid frame rate " + fps);
+        }
+        mIntervalMs = 1000 / fps;
+    }
+
+    /**
+     * Shows {@code digits} on the tubes as soon as the frame rate and the link allow.
+     *
+     * @param digits {@link #DIGITS} values, 0-9 or {@link #BLANK}; copied.
+     */
+    public void show(int[] digits) {
+        if (digits.length != DIGITS) {
+            throw new IllegalArgumentException("Expected " + DIGITS + " digits");
+        }
+        for (int digit : digits) {
+            if ((digit < 0 || digit > 9) && digit != BLANK) {
+                throw new IllegalArgumentException("Invalid digit " + digit);
+            }
+        }
+        synchronized (this) {
+            mFramesSubmitted++;
+            if (mHasPending) mFramesDropped++;
+            for (int i = 0; i < DIGITS / 2; i++) {
+                mPending[i] = (byte) (digits[2 * i] << 4 | digits[2 * i + 1]);
+            }
+            mHasPending = true;
+            mReleasePending = false;
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * Gives the tubes back to the clock.
+     */
+    public synchronized void release() {
+        if (mHasPending) mFramesDropped++;
+        mHasPending = false;
+        mReleasePending = true;
+        scheduleLocked();
+    }
+
+    public synchronized Metrics getMetrics() {
+        return new Metrics(mFramesSubmitted, mFramesSent, mFramesDropped);
+    }
+
+    /**
+     * Drops the pending frame, e.g. when the connection went away.
+     */
+    synchronized void reset() {
+        mHasPending = false;
+        mReleasePending = false;
+        mInFlight = false;
+        mScheduled = false;
+        mHandler.removeCallbacks(mSendRunnable);
+    }
+
+    private void scheduleLocked() {
+        if (mScheduled || mInFlight || !(mHasPending || mReleasePending)) return;
+        mScheduled = true;
+        final long delayMs = mLastSentAtMs + mIntervalMs - SystemClock.uptimeMillis();
+        mHandler.postDelayed(mSendRunnable, Math.max(0, delayMs));
+    }
+
+    private void sendPending() {
+        final BluetoothGattCharacteristic characteristic = mSession.getClockCharacteristic();
+        final byte[] frame;
+        synchronized (this) {
+            mScheduled = false;
+            if (mInFlight || !(mHasPending || mReleasePending)) return;
+            if (characteristic == null) {
+                // Not connected; keep the latest frame until reset().
+                return;
+            }
+            mFrame.clear();
+            // An empty frame releases the tubes.
+            FrameEncoder.encode(mFrame, Frame.OP_DISPLAY, mSequence, mPending, 0,
+                    mHasPending ? mPending.length : 0);
+            mSequence = (mSequence + 1) % 256;
+            frame = new byte[mFrame.position()];
+            mFrame.flip();
+            mFrame.get(frame);
+            if (mHasPending) mFramesSent++;
+            mHasPending = false;
+            mReleasePending = false;
+            mInFlight = true;
+            mLastSentAtMs = SystemClock.uptimeMillis();
+        }
+        if (!mSession.streamCharacteristic(characteristic, frame,
+                GattOperation.PRIORITY_INTERACTIVE, mWriteCallback)) {
+            mWriteCallback.onComplete(null, BluetoothGatt.GATT_FAILURE);
+        }
+    }
+}
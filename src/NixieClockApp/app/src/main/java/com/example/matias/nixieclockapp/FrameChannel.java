@@ -0,0 +1,235 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.util.Log;
+
+import com.example.matias.nixieclockapp.protocol.Frame;
+import com.example.matias.nixieclockapp.protocol.FrameDecoder;
+import com.example.matias.nixieclockapp.protocol.FrameEncoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Request/response exchange of {@code protocol.Frame}s with one clock.
+ *
+ * Commands are encoded with the next sequence number and written to the session's clock
+ * characteristic. Notifications are fed back through {@link #onData} and decoded; a response
+ * carrying the sequence number of a pending command completes it, anything else goes to the
+ * {@link FrameListener}. A command without a response within its timeout fails with
+ * {@code GattOperation.STATUS_TIMEOUT}.
+ */
+public class FrameChannel {
+    private final static String TAG = FrameChannel.class.getSimpleName();
+
+    public static final long DEFAULT_RESPONSE_TIMEOUT_MS = 1000;
+
+    private static final int SEQUENCE_COUNT = 256;
+
+    /**
+     * Completion of a command. Called on a binder thread, or on the session's handler thread
+     * for timeouts.
+     */
+    public interface ResponseCallback {
+        /**
+         * @param response The response frame (ACK, NACK or a command specific reply); only
+         *                 valid during the call.
+         * @param receivedAtNanos {@code SystemClock.elapsedRealtimeNanos()} when the
+         *                        notification carrying it arrived.
+         */
+        void onResponse(Frame response, long receivedAtNanos);
+
+        /**
+         * @param status {@code GattOperation.STATUS_TIMEOUT}, {@code STATUS_CANCELLED} or the
+         *               GATT status of the failed write.
+         */
+        void onFailure(int status);
+    }
+
+    /**
+     * Receives frames that don't answer a pending command.
+     */
+    public interface FrameListener {
+        void onFrame(Frame frame, long receivedAtNanos);
+    }
+
+    private final GattSession mSession;
+    private final Handler mHandler;
+    private final FrameDecoder mDecoder = new FrameDecoder();
+    private final Frame mFrame = new Frame();
+    // Received bytes not decoded yet, e.g. the first part of a frame split across notifications.
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(Frame.MAX_FRAME_SIZE * 2);
+    private final Pending[] mPending = new Pending[SEQUENCE_COUNT];
+    private int mNextSequence;
+    private FrameListener[] mFrameListeners = new FrameListener[0];
+
+    FrameChannel(GattSession session, Handler handler) {
+        mSession = session;
+        mHandler = handler;
+    }
+
+    public synchronized void addFrameListener(FrameListener listener) {
+        final FrameListener[] listeners = new FrameListener[mFrameListeners.length + 1];
+        System.arraycopy(mFrameListeners, 0, listeners, 0, mFrameListeners.length);
+        listeners[mFrameListeners.length] = listener;
+        mFrameListeners = listeners;
+    }
+
+    public synchronized void removeFrameListener(FrameListener listener) {
+        for (int i = 0; i < mFrameListeners.length; i++) {
+            if (mFrameListeners[i] != listener) continue;
+            final FrameListener[] listeners = new FrameListener[mFrameListeners.length - 1];
+            System.arraycopy(mFrameListeners, 0, listeners, 0, i);
+            System.arraycopy(mFrameListeners, i + 1, listeners, i, listeners.length - i);
+            mFrameListeners = listeners;
+            return;
+        }
+    }
+
+    /**
+     * Sends a command frame in the interactive lane.
+     *
+     * @param callback Completion callback, may be null.
+     *
+     * @return The command's sequence number, or -1 if it couldn't be queued, in which case
+     *         {@code callback} isn't called.
+     */
+    public int send(int opcode, byte[] payload, int offset, int length,
+                    ResponseCallback callback, long timeoutMs) {
+        return send(opcode, payload, offset, length, callback, timeoutMs,
+                GattOperation.PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Same as {@link #send(int, byte[], int, int, ResponseCallback, long)} in the
+     * {@code GattOperation} lane of {@code priority}.
+     */
+    public int send(int opcode, byte[] payload, int offset, int length,
+                    ResponseCallback callback, long timeoutMs, int priority) {
+        final BluetoothGattCharacteristic characteristic = mSession.getClockCharacteristic();
+        if (characteristic == null) {
+            Log.w(TAG, "Clock characteristic not resolved");
+            return -1;
+        }
+        final int sequence;
+        final Pending pending;
+        synchronized (this) {
+            sequence = mNextSequence;
+            mNextSequence = (mNextSequence + 1) % SEQUENCE_COUNT;
+            pending = new Pending(sequence, callback);
+            failLocked(mPending[sequence], GattOperation.STATUS_CANCELLED);
+            mPending[sequence] = pending;
+        }
+        final ByteBuffer frame = ByteBuffer.allocate(Frame.OVERHEAD + length);
+        FrameEncoder.encode(frame, opcode, sequence, payload, offset, length);
+
+        mHandler.postDelayed(pending, timeoutMs);
+        final boolean queued = mSession.writeCharacteristic(characteristic, frame.array(),
+                priority, new GattOperation.Callback() {
+                    @Override
+                    public void onComplete(GattOperation operation, int status) {
+                        if (status != BluetoothGatt.GATT_SUCCESS) {
+                            complete(pending, status);
+                        }
+                    }
+                });
+        if (!queued) {
+            synchronized (this) {
+                if (mPending[sequence] == pending) mPending[sequence] = null;
+            }
+            mHandler.removeCallbacks(pending);
+            return -1;
+        }
+        return sequence;
+    }
+
+    public int send(int opcode, byte[] payload, ResponseCallback callback) {
+        return send(opcode, payload, 0, payload.length, callback, DEFAULT_RESPONSE_TIMEOUT_MS);
+    }
+
+    /**
+     * Feeds a received notification payload.
+     */
+    synchronized void onData(ByteBuffer payload, long receivedAtNanos) {
+        if (payload.remaining() > mReceiveBuffer.remaining()) {
+            // Garbage that never formed a frame; start over.
+            mReceiveBuffer.clear();
+            if (payload.remaining() > mReceiveBuffer.remaining()) return;
+        }
+        mReceiveBuffer.put(payload);
+        mReceiveBuffer.flip();
+        // Callbacks run under the lock since mFrame is reused for every decoded frame.
+        while (mDecoder.decode(mReceiveBuffer, mFrame)) {
+            final Pending pending = mPending[mFrame.getSequence()];
+            if (pending != null && isResponse(mFrame.getOpcode())) {
+                mPending[mFrame.getSequence()] = null;
+                mHandler.removeCallbacks(pending);
+                if (pending.mCallback != null) {
+                    pending.mCallback.onResponse(mFrame, receivedAtNanos);
+                }
+            } else {
+                for (FrameListener listener : mFrameListeners) {
+                    listener.onFrame(mFrame, receivedAtNanos);
+                }
+            }
+        }
+        mReceiveBuffer.compact();
+    }
+
+    /**
+     * Fails every pending command, e.g. when the connection went away.
+     */
+    synchronized void cancelAll() {
+        for (int i = 0; i < mPending.length; i++) {
+            failLocked(mPending[i], GattOperation.STATUS_CANCELLED);
+            mPending[i] = null;
+        }
+        mReceiveBuffer.clear();
+    }
+
+    public synchronized long getDecodeErrorCount() {
+        return mDecoder.getCrcErrorCount() + mDecoder.getLengthErrorCount();
+    }
+
+    private static boolean isResponse(int opcode) {
+        return opcode == Frame.OP_ACK || opcode == Frame.OP_NACK
+                || opcode == Frame.OP_ECHO_REPLY || opcode == Frame.OP_SETTINGS
+                || opcode == Frame.OP_CAPABILITIES;
+    }
+
+    private void complete(Pending pending, int status) {
+        synchronized (this) {
+            if (mPending[pending.mSequence] != pending) return;
+            mPending[pending.mSequence] = null;
+            failLocked(pending, status);
+        }
+    }
+
+    private void failLocked(Pending pending, int status) {
+        if (pending == null) return;
+        mHandler.removeCallbacks(pending);
+        if (pending.mCallback != null) {
+            pending.mCallback.onFailure(status);
+        }
+    }
+
+    /**
+     * A command waiting for its response; runs when it times out.
+     */
+    private class Pending implements Runnable {
+        final int mSequence;
+        final ResponseCallback mCallback;
+
+        Pending(int sequence, ResponseCallback callback) {
+            mSequence = sequence;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            Log.w(TAG, "No response to command " + mSequence);
+            complete(this, GattOperation.STATUS_TIMEOUT);
+        }
+    }
+}
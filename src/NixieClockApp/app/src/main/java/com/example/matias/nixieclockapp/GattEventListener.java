@@ -0,0 +1,33 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-process receiver of the GATT events of {@code BluetoothLeService}, registered with
+ * {@code BluetoothLeService#addGattEventListener}. Events are dispatched directly on the binder
+ * thread that produced them, without going through {@code sendBroadcast}; listeners that touch
+ * views have to hop to the main thread themselves and must not block.
+ */
+public interface GattEventListener {
+    void onConnected(String address);
+
+    /**
+     * @param status GATT status of the disconnect, see {@code ReconnectionEngine#classify}.
+     */
+    void onDisconnected(String address, int status);
+
+    void onServicesDiscovered(String address);
+
+    /**
+     * Called for completed reads and notifications.
+     *
+     * @param payload Read-only view of the value read or notified, as it arrived: frames the
+     *                clock sends may span several notifications. The view points into a reused
+     *                receive buffer and is only valid for the next few payloads; copy the bytes
+     *                to keep them.
+     */
+    void onDataAvailable(String address, BluetoothGattCharacteristic characteristic,
+                         ByteBuffer payload);
+}
@@ -0,0 +1,218 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * A single GATT request (characteristic write/read, descriptor write) waiting for its turn in
+ * {@code GattOperationQueue}. Android only allows one GATT request in flight per connection and
+ * silently drops the rest, so every request goes through the queue and is completed by the
+ * matching {@code BluetoothGattCallback} method.
+ */
+public abstract class GattOperation {
+    public static final int TYPE_WRITE_CHARACTERISTIC = 0;
+    public static final int TYPE_READ_CHARACTERISTIC = 1;
+    public static final int TYPE_WRITE_DESCRIPTOR = 2;
+    public static final int TYPE_REQUEST_MTU = 3;
+
+    // Non-GATT statuses reported to Callback#onComplete. GATT statuses are all >= 0.
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_CANCELLED = -2;
+    public static final int STATUS_REJECTED = -3;
+
+    public static final long DEFAULT_TIMEOUT_MS = 3000;
+
+    // Lanes of GattOperationQueue, served strictly in this order. Control is link setup and
+    // time critical commands, interactive is what the user is waiting for, bulk is everything
+    // that can be delayed (streams, transfers).
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_INTERACTIVE = 1;
+    public static final int PRIORITY_BULK = 2;
+    public static final int PRIORITY_COUNT = 3;
+
+    /**
+     * Notified once per operation, either from the GATT callback thread or from the
+     * queue's handler thread when the operation timed out.
+     */
+    public interface Callback {
+        void onComplete(GattOperation operation, int status);
+    }
+
+    private final int mType;
+    // Characteristic or descriptor the request is about, null for link requests like MTU.
+    private final Object mTarget;
+    private long mTimeoutMs = DEFAULT_TIMEOUT_MS;
+    private Callback mCallback;
+    private int mCreditCost;
+    private int mPriority = PRIORITY_INTERACTIVE;
+    // More packets of the same payload follow this one and must not be separated from it.
+    private boolean mContinued;
+    // Set when the operation must not go out anymore, e.g. the rest of a payload after one of
+    // its packets failed.
+    private volatile boolean mCancelled;
+    private long mEnqueuedAtMs;
+
+    protected GattOperation(int type) {
+        this(type, null);
+    }
+
+    protected GattOperation(int type, Object target) {
+        mType = type;
+        mTarget = target;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return The characteristic or descriptor the request is about, null if none.
+     */
+    public Object getTarget() {
+        return mTarget;
+    }
+
+    public long getTimeoutMs() {
+        return mTimeoutMs;
+    }
+
+    public GattOperation setTimeoutMs(long timeoutMs) {
+        mTimeoutMs = timeoutMs;
+        return this;
+    }
+
+    public Callback getCallback() {
+        return mCallback;
+    }
+
+    public GattOperation setCallback(Callback callback) {
+        mCallback = callback;
+        return this;
+    }
+
+    /**
+     * @return Credits this operation must take from the queue's {@code CreditFlowController}
+     *         before it can be issued, 0 if it isn't flow controlled.
+     */
+    public int getCreditCost() {
+        return mCreditCost;
+    }
+
+    GattOperation setCreditCost(int creditCost) {
+        mCreditCost = creditCost;
+        return this;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @param priority One of the {@code PRIORITY_} lanes.
+     */
+    public GattOperation setPriority(int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
+        }
+        mPriority = priority;
+        return this;
+    }
+
+    boolean isContinued() {
+        return mContinued;
+    }
+
+    GattOperation setContinued(boolean continued) {
+        mContinued = continued;
+        return this;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Keeps the operation from being issued if it is still queued. The queue then completes it
+     * with {@link #STATUS_CANCELLED}; an operation already in flight isn't affected.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    long getEnqueuedAtMs() {
+        return mEnqueuedAtMs;
+    }
+
+    void setEnqueuedAtMs(long enqueuedAtMs) {
+        mEnqueuedAtMs = enqueuedAtMs;
+    }
+
+    /**
+     * Issues the request on the given connection.
+     *
+     * @return true if the stack accepted the request, false if it was rejected outright.
+     */
+    abstract boolean execute(BluetoothGatt gatt);
+
+    /**
+     * Writes {@code value} to {@code characteristic}. The value is captured when the
+     * operation is created, so the characteristic can be reused by later writes before this
+     * one goes out.
+     */
+    public static GattOperation writeCharacteristic(final BluetoothGattCharacteristic characteristic,
+                                                    final byte[] value) {
+        return writeCharacteristic(characteristic, value,
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
+
+    /**
+     * Same as {@link #writeCharacteristic(BluetoothGattCharacteristic, byte[])} with an explicit
+     * write type. Writes without response still complete through
+     * {@code BluetoothGattCallback#onCharacteristicWrite}, which the stack calls once the packet
+     * has been handed to the controller, so the controller's own buffers can't be overrun.
+     */
+    public static GattOperation writeCharacteristic(final BluetoothGattCharacteristic characteristic,
+                                                    final byte[] value, final int writeType) {
+        return new GattOperation(TYPE_WRITE_CHARACTERISTIC, characteristic) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                characteristic.setWriteType(writeType);
+                characteristic.setValue(value);
+                return gatt.writeCharacteristic(characteristic);
+            }
+        };
+    }
+
+    public static GattOperation readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        return new GattOperation(TYPE_READ_CHARACTERISTIC, characteristic) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.readCharacteristic(characteristic);
+            }
+        };
+    }
+
+    /**
+     * Starts an MTU exchange. Completed by {@code BluetoothGattCallback#onMtuChanged}.
+     */
+    public static GattOperation requestMtu(final int mtu) {
+        return new GattOperation(TYPE_REQUEST_MTU) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.requestMtu(mtu);
+            }
+        }.setPriority(PRIORITY_CONTROL);
+    }
+
+    public static GattOperation writeDescriptor(final BluetoothGattDescriptor descriptor,
+                                                final byte[] value) {
+        return new GattOperation(TYPE_WRITE_DESCRIPTOR, descriptor) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            }
+        }.setPriority(PRIORITY_CONTROL);
+    }
+}
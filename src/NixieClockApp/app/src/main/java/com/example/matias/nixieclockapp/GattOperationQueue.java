@@ -0,0 +1,449 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializes GATT requests for one connection. Only one {@code GattOperation} is in flight at a
+ * time; the next one is issued straight from the completion callback (before the caller's own
+ * callback runs), so back-to-back requests go out as fast as the link acknowledges them instead
+ * of waiting for a thread hop. Operations that never complete are failed with
+ * {@code GattOperation#STATUS_TIMEOUT} so a lost callback cannot stall the queue.
+ *
+ * Operations with a credit cost (writes to the clock) are additionally paced by an optional
+ * {@code CreditFlowController}; when it runs out of credits the head of the queue waits on the
+ * handler until enough have been returned. Operations without a cost don't touch the clock's
+ * serial buffer and are issued meanwhile.
+ *
+ * Pending operations wait in one lane per {@code GattOperation} priority and the highest lane
+ * with work is always served first, so a control or interactive request only waits for the
+ * packet in flight, however many bulk packets are queued. Packets of one payload that continue
+ * each other are never split, since the clock reads them as a single byte stream.
+ */
+public class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    /**
+     * Notified, outside the queue's lock, whenever operations are added or finish.
+     */
+    public interface DepthListener {
+        void onQueueDepthChanged(int depth);
+    }
+
+    private final Handler mHandler;
+    private final ArrayDeque<GattOperation>[] mLanes;
+    // Lane whose head continues the payload of the last issued packet, -1 if none.
+    private int mContinuedLane = -1;
+    private BluetoothGatt mGatt;
+    private GattOperation mInFlight;
+    // Last operation that timed out; its callback may still arrive after the next one is issued.
+    private GattOperation mTimedOut;
+    private Runnable mTimeoutRunnable;
+    private CreditFlowController mFlowController;
+    private boolean mWaitingForCredits;
+    // Lane of the operation waiting for credits, valid while mWaitingForCredits is set.
+    private int mWaitingLane;
+    private volatile DepthListener mDepthListener;
+
+    private final Runnable mCreditsAvailableRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final List<GattOperation> rejected;
+            synchronized (GattOperationQueue.this) {
+                mWaitingForCredits = false;
+                rejected = issueNextLocked();
+            }
+            dispatchRejected(rejected);
+        }
+    };
+
+    private long mCompletedCount;
+    private long mFailedCount;
+    private long mTimedOutCount;
+    private final long[] mMaxWaitMs = new long[GattOperation.PRIORITY_COUNT];
+
+    /**
+     * @param handler Handler used to schedule per-operation timeouts.
+     */
+    @SuppressWarnings("unchecked")
+    public GattOperationQueue(Handler handler) {
+        mHandler = handler;
+        mLanes = new ArrayDeque[GattOperation.PRIORITY_COUNT];
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new ArrayDeque<GattOperation>();
+        }
+    }
+
+    /**
+     * Attaches the queue to a connection that is ready to accept requests and starts draining
+     * anything queued in the meantime. Passing null detaches it and cancels all pending and
+     * in-flight operations.
+     */
+    public void setGatt(BluetoothGatt gatt) {
+        final List<GattOperation> finished;
+        synchronized (this) {
+            mGatt = gatt;
+            finished = gatt != null ? issueNextLocked() : drainLocked();
+        }
+        if (gatt != null) {
+            dispatchRejected(finished);
+        } else {
+            dispatchAll(finished, GattOperation.STATUS_CANCELLED);
+        }
+        reportDepth();
+    }
+
+    /**
+     * Sets the flow controller that paces operations with a credit cost. Null disables pacing.
+     */
+    public synchronized void setFlowController(CreditFlowController flowController) {
+        mFlowController = flowController;
+    }
+
+    public synchronized CreditFlowController getFlowController() {
+        return mFlowController;
+    }
+
+    public void setDepthListener(DepthListener listener) {
+        mDepthListener = listener;
+    }
+
+    /**
+     * Adds an operation to the tail of its priority lane. It is issued immediately if the
+     * connection is attached and nothing else is in flight.
+     */
+    public void enqueue(GattOperation operation) {
+        final List<GattOperation> rejected;
+        synchronized (this) {
+            operation.setEnqueuedAtMs(SystemClock.uptimeMillis());
+            mLanes[operation.getPriority()].add(operation);
+            rejected = issueNextLocked();
+        }
+        dispatchRejected(rejected);
+        reportDepth();
+    }
+
+    /**
+     * Adds operations to the tails of their lanes at once, so operations queued concurrently
+     * can't end up between them.
+     */
+    public void enqueueAll(List<GattOperation> operations) {
+        final List<GattOperation> rejected;
+        synchronized (this) {
+            final long now = SystemClock.uptimeMillis();
+            for (GattOperation operation : operations) {
+                operation.setEnqueuedAtMs(now);
+                mLanes[operation.getPriority()].add(operation);
+            }
+            rejected = issueNextLocked();
+        }
+        dispatchRejected(rejected);
+        reportDepth();
+    }
+
+    /**
+     * Adds an operation to the head of its priority lane, ahead of anything already pending
+     * there. Used for link setup requests that later operations depend on.
+     */
+    public void enqueueFirst(GattOperation operation) {
+        final List<GattOperation> rejected;
+        synchronized (this) {
+            operation.setEnqueuedAtMs(SystemClock.uptimeMillis());
+            mLanes[operation.getPriority()].addFirst(operation);
+            rejected = issueNextLocked();
+        }
+        dispatchRejected(rejected);
+        reportDepth();
+    }
+
+    /**
+     * Called from the {@code BluetoothGattCallback} method matching {@code type}, with the
+     * characteristic or descriptor the callback is about (null for MTU changes). Completions
+     * that don't match the in-flight operation are ignored, and so is the first completion
+     * matching an operation that timed out: it is that operation's late callback, not the
+     * completion of the one issued after it.
+     *
+     * @return true if the completion was consumed by the queue.
+     */
+    public boolean complete(int type, Object target, int status) {
+        final GattOperation finished;
+        final List<GattOperation> rejected;
+        synchronized (this) {
+            if (mTimedOut != null && matches(mTimedOut, type, target)) {
+                Log.w(TAG, "Late completion of timed out operation of type " + type);
+                mTimedOut = null;
+                return false;
+            }
+            if (mInFlight == null || !matches(mInFlight, type, target)) {
+                return false;
+            }
+            finished = mInFlight;
+            finishInFlightLocked(status);
+            rejected = issueNextLocked();
+        }
+        dispatch(finished, status);
+        dispatchRejected(rejected);
+        reportDepth();
+        return true;
+    }
+
+    /**
+     * Cancels every pending and in-flight operation without detaching the connection.
+     */
+    public void clear() {
+        final List<GattOperation> cancelled;
+        synchronized (this) {
+            cancelled = drainLocked();
+        }
+        dispatchAll(cancelled, GattOperation.STATUS_CANCELLED);
+        reportDepth();
+    }
+
+    /**
+     * @return Number of operations waiting, including the one in flight.
+     */
+    public synchronized int size() {
+        return pendingCountLocked() + (mInFlight != null ? 1 : 0);
+    }
+
+    /**
+     * @return Operations waiting in the lane of {@code priority}.
+     */
+    public synchronized int size(int priority) {
+        return mLanes[priority].size();
+    }
+
+    public synchronized boolean isIdle() {
+        return mInFlight == null && pendingCountLocked() == 0;
+    }
+
+    /**
+     * @return Longest time an operation of {@code priority} waited before being issued.
+     */
+    public synchronized long getMaxWaitMs(int priority) {
+        return mMaxWaitMs[priority];
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    public synchronized long getTimedOutCount() {
+        return mTimedOutCount;
+    }
+
+    /**
+     * Issues pending operations until one is accepted by the stack. Operations the stack
+     * rejects outright, and cancelled ones skipped on the way, are returned so their callbacks
+     * can run outside the lock.
+     */
+    private List<GattOperation> issueNextLocked() {
+        List<GattOperation> rejected = null;
+        while (mInFlight == null && mGatt != null) {
+            final int lane = nextLaneLocked();
+            if (lane < 0) break;
+            final GattOperation head = mLanes[lane].peek();
+            if (head.isCancelled()) {
+                mLanes[lane].poll();
+                mContinuedLane = head.isContinued() ? lane : -1;
+                if (rejected == null) {
+                    rejected = new ArrayList<GattOperation>();
+                }
+                rejected.add(head);
+                continue;
+            }
+            final int cost = head.getCreditCost();
+            if (cost > 0 && mFlowController != null && cost > mFlowController.getCapacity()) {
+                // Split for a larger buffer before the flow controller was replaced; it would
+                // overflow the current one.
+                Log.w(TAG, "Packet of " + cost + " bytes exceeds the flow control buffer");
+                mLanes[lane].poll();
+                mContinuedLane = head.isContinued() ? lane : -1;
+                mFailedCount++;
+                cancelRestOfPayloadLocked(head);
+                if (rejected == null) {
+                    rejected = new ArrayList<GattOperation>();
+                }
+                rejected.add(head);
+                continue;
+            }
+            if (cost > 0 && mFlowController != null) {
+                // Clock writes of every lane draw credits. One from a higher lane than the
+                // operation waiting for them takes its place at the front of the wait, and is
+                // retried at once since it may need fewer of them.
+                if (mWaitingForCredits) {
+                    if (lane >= mWaitingLane) break;
+                    mHandler.removeCallbacks(mCreditsAvailableRunnable);
+                    mWaitingForCredits = false;
+                }
+                final long waitMs = mFlowController.tryAcquire(cost, SystemClock.uptimeMillis());
+                if (waitMs > 0) {
+                    mWaitingForCredits = true;
+                    mWaitingLane = lane;
+                    mHandler.postDelayed(mCreditsAvailableRunnable, waitMs);
+                    break;
+                }
+            }
+            final GattOperation operation = mLanes[lane].poll();
+            mContinuedLane = operation.isContinued() ? lane : -1;
+            final long waitedMs = SystemClock.uptimeMillis() - operation.getEnqueuedAtMs();
+            if (waitedMs > mMaxWaitMs[lane]) mMaxWaitMs[lane] = waitedMs;
+            if (operation.execute(mGatt)) {
+                mInFlight = operation;
+                scheduleTimeoutLocked(operation);
+            } else {
+                Log.w(TAG, "GATT rejected operation of type " + operation.getType());
+                mFailedCount++;
+                cancelRestOfPayloadLocked(operation);
+                if (rejected == null) {
+                    rejected = new ArrayList<GattOperation>();
+                }
+                rejected.add(operation);
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * @return The lane to issue from: the one continuing the last payload, otherwise the
+     *         highest one with work; -1 if all are empty.
+     */
+    private int nextLaneLocked() {
+        if (mContinuedLane >= 0 && !mLanes[mContinuedLane].isEmpty()) {
+            return mContinuedLane;
+        }
+        for (int i = 0; i < mLanes.length; i++) {
+            if (!mLanes[i].isEmpty()) return i;
+        }
+        return -1;
+    }
+
+    private int pendingCountLocked() {
+        int count = 0;
+        for (ArrayDeque<GattOperation> lane : mLanes) {
+            count += lane.size();
+        }
+        return count;
+    }
+
+    private List<GattOperation> drainLocked() {
+        final List<GattOperation> cancelled =
+                new ArrayList<GattOperation>(pendingCountLocked() + 1);
+        if (mWaitingForCredits) {
+            mHandler.removeCallbacks(mCreditsAvailableRunnable);
+            mWaitingForCredits = false;
+        }
+        if (mInFlight != null) {
+            cancelled.add(mInFlight);
+            finishInFlightLocked(GattOperation.STATUS_CANCELLED);
+        }
+        for (ArrayDeque<GattOperation> lane : mLanes) {
+            cancelled.addAll(lane);
+            lane.clear();
+        }
+        mContinuedLane = -1;
+        mTimedOut = null;
+        return cancelled;
+    }
+
+    private void finishInFlightLocked(int status) {
+        if (mTimeoutRunnable != null) {
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            mTimeoutRunnable = null;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mCompletedCount++;
+        } else if (status == GattOperation.STATUS_TIMEOUT) {
+            mTimedOutCount++;
+        } else if (status != GattOperation.STATUS_CANCELLED) {
+            mFailedCount++;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            cancelRestOfPayloadLocked(mInFlight);
+        }
+        mInFlight = null;
+    }
+
+    /**
+     * Cancels the packets that continue {@code failed}'s payload. They are at the head of its
+     * lane, since a payload is never split, and are skipped before the next issue: the clock
+     * would otherwise get the end of a frame without its beginning.
+     */
+    private void cancelRestOfPayloadLocked(GattOperation failed) {
+        if (!failed.isContinued()) return;
+        for (GattOperation operation : mLanes[failed.getPriority()]) {
+            operation.cancel();
+            if (!operation.isContinued()) break;
+        }
+    }
+
+    private void scheduleTimeoutLocked(final GattOperation operation) {
+        mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                final List<GattOperation> rejected;
+                synchronized (GattOperationQueue.this) {
+                    if (mInFlight != operation) {
+                        return;
+                    }
+                    Log.w(TAG, "GATT operation of type " + operation.getType() + " timed out");
+                    finishInFlightLocked(GattOperation.STATUS_TIMEOUT);
+                    mTimedOut = operation;
+                    rejected = issueNextLocked();
+                }
+                dispatch(operation, GattOperation.STATUS_TIMEOUT);
+                dispatchRejected(rejected);
+                reportDepth();
+            }
+        };
+        mHandler.postDelayed(mTimeoutRunnable, operation.getTimeoutMs());
+    }
+
+    private static boolean matches(GattOperation operation, int type, Object target) {
+        return operation.getType() == type
+                && (operation.getTarget() == null || operation.getTarget() == target);
+    }
+
+    private void reportDepth() {
+        final DepthListener listener = mDepthListener;
+        if (listener != null) {
+            listener.onQueueDepthChanged(size());
+        }
+    }
+
+    private static void dispatch(GattOperation operation, int status) {
+        final GattOperation.Callback callback = operation.getCallback();
+        if (callback != null) {
+            callback.onComplete(operation, status);
+        }
+    }
+
+    /**
+     * Completes the operations returned by {@link #issueNextLocked()}: cancelled ones with
+     * {@code STATUS_CANCELLED}, the ones the stack refused with {@code STATUS_REJECTED}.
+     */
+    private static void dispatchRejected(List<GattOperation> operations) {
+        if (operations == null) return;
+        for (GattOperation operation : operations) {
+            dispatch(operation, operation.isCancelled()
+                    ? GattOperation.STATUS_CANCELLED : GattOperation.STATUS_REJECTED);
+        }
+    }
+
+    private static void dispatchAll(List<GattOperation> operations, int status) {
+        if (operations == null) return;
+        for (GattOperation operation : operations) {
+            dispatch(operation, status);
+        }
+    }
+}
@@ -0,0 +1,736 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.matias.nixieclockapp.protocol.DigitSequenceCodec;
+import com.example.matias.nixieclockapp.protocol.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Connection to a single clock: its {@code BluetoothGatt}, operation queue, negotiated MTU,
+ * connection priority controller and reconnection engine. {@code BluetoothLeService} talks to
+ * one session, {@code GattSessionManager} keeps several of them open at once.
+ *
+ * GATT events are reported to a {@link Listener}; all of them arrive on binder threads.
+ */
+public class GattSession {
+    private final static String TAG = GattSession.class.getSimpleName();
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    // The legacy firmware never answers, so the probe's timeout is what identifies it.
+    static final long CAPABILITY_PROBE_TIMEOUT_MS = FrameChannel.DEFAULT_RESPONSE_TIMEOUT_MS;
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    /**
+     * Receives the GATT events of a session.
+     */
+    public interface Listener {
+        void onConnectionStateChanged(GattSession session, int state, int status);
+
+        void onServicesDiscovered(GattSession session);
+
+        /**
+         * @param payload View of the value in the session's {@code ReceiveRing}; only valid
+         *                until the ring wraps around, copy it to keep it.
+         */
+        void onDataAvailable(GattSession session, BluetoothGattCharacteristic characteristic,
+                             ByteBuffer payload);
+    }
+
+    private final Context mContext;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final String mAddress;
+    private final CapabilityCache mCapabilityCache;
+    private final Listener mListener;
+
+    private BluetoothGatt mBluetoothGatt;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+
+    // GATT requests are serialized through this queue; Android drops any request issued while
+    // another one is still in flight.
+    private final GattOperationQueue mOperationQueue;
+    private final ConnectionPriorityController mPriorityController;
+
+    // HM-10 characteristic of the current connection, resolved through the handle cache.
+    private volatile BluetoothGattCharacteristic mClockCharacteristic;
+
+    // Recovers connections that drop without the user asking for it.
+    private final ReconnectionEngine mReconnectionEngine;
+
+    // What the clock's firmware handles, from the cache or probed once per connection; null
+    // until known.
+    private volatile ClockCapabilities mCapabilities;
+    // The clock characteristic's CCCD was written, so the clock's responses reach the app.
+    private volatile boolean mNotificationsEnabled;
+
+    // Binary protocol commands to the clock and their responses.
+    private final FrameChannel mFrameChannel;
+    private final TimeSyncEngine mTimeSyncEngine;
+
+    // Settings the app wants on the clock, resent on reconnect where the clock differs.
+    private final ClockState mClockState = new ClockState();
+    private final ClockStateSync mClockStateSync;
+    private final ReliableStream mReliableStream;
+    private final DisplayStreamer mDisplayStreamer;
+
+    // ATT MTU negotiated for the current connection, and the buffers received values are copied
+    // into.
+    private volatile int mMtu = Packetizer.DEFAULT_MTU;
+    private final ReceiveRing mReceiveRing = new ReceiveRing();
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnectionState = STATE_CONNECTED;
+                mReconnectionEngine.onConnected();
+                mListener.onConnectionStateChanged(GattSession.this, STATE_CONNECTED, status);
+                Log.i(TAG, "Connected to GATT server " + mAddress);
+                // Attempts to discover services after successful connection.
+                Log.i(TAG, "Attempting to start service discovery:" + gatt.discoverServices());
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mConnectionState = STATE_DISCONNECTED;
+                mOperationQueue.setGatt(null);
+                mFrameChannel.cancelAll();
+                mReliableStream.cancelAll();
+                mDisplayStreamer.reset();
+                mPriorityController.detach();
+                mClockCharacteristic = null;
+                mCapabilities = null;
+                mNotificationsEnabled = false;
+                mMtu = Packetizer.DEFAULT_MTU;
+                Log.i(TAG, "Disconnected from GATT server " + mAddress + ", status " + status);
+                mReconnectionEngine.onDisconnected(status);
+                mListener.onConnectionStateChanged(GattSession.this, STATE_DISCONNECTED, status);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mClockCharacteristic = findCharacteristic(gatt, BluetoothLeService.UUID_HM_10);
+                // Characteristics are only usable once discovery is done, start draining.
+                // Ask for the largest MTU first so later writes can use bigger packets; HM-10
+                // modules that refuse keep the default and get 20 byte packets.
+                mOperationQueue.getFlowController().reset();
+                mOperationQueue.enqueueFirst(GattOperation.requestMtu(Packetizer.MAX_MTU));
+                if (mClockCharacteristic != null) {
+                    // Queued in the control lane before anything is sent to the clock, so its
+                    // first response is already notified.
+                    enableClockNotifications();
+                }
+                mPriorityController.attach(gatt, mBluetoothAdapter);
+                mOperationQueue.setGatt(gatt);
+                mListener.onServicesDiscovered(GattSession.this);
+                if (mClockCharacteristic != null) {
+                    final ClockCapabilities cached = mCapabilityCache.get(mAddress);
+                    if (cached != null) {
+                        onCapabilities(cached);
+                    } else if (mCapabilityCache.isProbeAllowed(mAddress)) {
+                        sendCapabilityQuery();
+                    } else {
+                        // Probing could jam a legacy clock; it is only treated as binary once
+                        // the user asks for the probe (probeCapabilities). Not cached, so that
+                        // stays possible.
+                        onCapabilities(ClockCapabilities.LEGACY);
+                    }
+                }
+            } else {
+                Log.w(TAG, "onServicesDiscovered received: " + status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                final ByteBuffer payload = mReceiveRing.put(characteristic.getValue());
+                if (payload != null) {
+                    mListener.onDataAvailable(GattSession.this, characteristic, payload);
+                }
+            }
+            mOperationQueue.complete(GattOperation.TYPE_READ_CHARACTERISTIC, characteristic,
+                    status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onCharacteristicWrite received: " + status);
+            }
+            mOperationQueue.complete(GattOperation.TYPE_WRITE_CHARACTERISTIC, characteristic,
+                    status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Log.i(TAG, "MTU changed to " + mtu);
+                mMtu = mtu;
+            } else {
+                Log.w(TAG, "onMtuChanged received: " + status);
+            }
+            mOperationQueue.complete(GattOperation.TYPE_REQUEST_MTU, null, status);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            mPriorityController.onPhyUpdate(txPhy, rxPhy, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onDescriptorWrite received: " + status);
+            }
+            mOperationQueue.complete(GattOperation.TYPE_WRITE_DESCRIPTOR, descriptor,
+                    status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            final long receivedAtNanos = SystemClock.elapsedRealtimeNanos();
+            // Each notification is delivered on its own. The HM-10 cuts the clock's UART stream
+            // into notifications at arbitrary points and never sends an empty one, so the short
+            // packet rule would hold back anything ending on a full packet; FrameChannel
+            // reassembles frames across notifications itself.
+            final ByteBuffer payload = mReceiveRing.put(characteristic.getValue());
+            if (payload != null) {
+                mFrameChannel.onData(payload, receivedAtNanos);
+                payload.rewind();
+                mListener.onDataAvailable(GattSession.this, characteristic, payload);
+            }
+        }
+    };
+
+    private final ReconnectionEngine.Host mReconnectionHost = new ReconnectionEngine.Host() {
+        @Override
+        public boolean reconnect(int action) {
+            if (action == ReconnectionEngine.ACTION_RETRY && mBluetoothGatt != null
+                    && mBluetoothGatt.connect()) {
+                mConnectionState = STATE_CONNECTING;
+                return true;
+            }
+            return openGatt(action == ReconnectionEngine.ACTION_BACKGROUND);
+        }
+    };
+
+    GattSession(Context context, BluetoothAdapter adapter, String address, Handler handler,
+                CapabilityCache capabilityCache, Listener listener) {
+        mContext = context;
+        mBluetoothAdapter = adapter;
+        mAddress = address;
+        mCapabilityCache = capabilityCache;
+        mListener = listener;
+        mOperationQueue = new GattOperationQueue(handler);
+        mOperationQueue.setFlowController(new CreditFlowController());
+        mPriorityController = new ConnectionPriorityController(handler);
+        mOperationQueue.setDepthListener(mPriorityController);
+        mReconnectionEngine = new ReconnectionEngine(handler, mReconnectionHost);
+        mFrameChannel = new FrameChannel(this, handler);
+        mTimeSyncEngine = new TimeSyncEngine(mFrameChannel, handler);
+        mClockStateSync = new ClockStateSync(mClockState, mFrameChannel);
+        mReliableStream = new ReliableStream(this, mFrameChannel, handler);
+        mDisplayStreamer = new DisplayStreamer(this, handler);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    /**
+     * @return true while connected, or while the reconnection engine is bringing a dropped
+     *         connection back.
+     */
+    public boolean isActive() {
+        return mConnectionState != STATE_DISCONNECTED || mReconnectionEngine.isReconnecting();
+    }
+
+    /**
+     * Connects to the clock, reusing the existing {@code BluetoothGatt} if there is one.
+     *
+     * @return Return true if the connection is initiated successfully.
+     */
+    public boolean connect() {
+        mReconnectionEngine.start();
+
+        // Previously connected device.  Try to reconnect.
+        if (mBluetoothGatt != null) {
+            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+            if (mBluetoothGatt.connect()) {
+                mConnectionState = STATE_CONNECTING;
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        return openGatt(false);
+    }
+
+    /**
+     * Closes the current {@code BluetoothGatt}, if any, and opens a new one.
+     *
+     * @param autoConnect False for a direct connection, true for a background connection that
+     *                    completes whenever the device shows up.
+     */
+    private boolean openGatt(boolean autoConnect) {
+        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mAddress);
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return false;
+        }
+        if (mBluetoothGatt != null) {
+            mOperationQueue.setGatt(null);
+            mPriorityController.detach();
+            mBluetoothGatt.close();
+        }
+        mBluetoothGatt = device.connectGatt(mContext, autoConnect, mGattCallback,
+                BluetoothDevice.TRANSPORT_LE);
+        Log.d(TAG, "Trying to create a new connection, autoConnect=" + autoConnect);
+        mConnectionState = STATE_CONNECTING;
+        return mBluetoothGatt != null;
+    }
+
+    /**
+     * Disconnects an existing connection or cancel a pending connection. Automatic
+     * reconnection stops until {@link #connect()} is called again.
+     */
+    public void disconnect() {
+        mReconnectionEngine.stop();
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return;
+        }
+        mBluetoothGatt.disconnect();
+    }
+
+    /**
+     * Releases the {@code BluetoothGatt}. The session can be connected again afterwards.
+     */
+    public void close() {
+        mReconnectionEngine.stop();
+        if (mBluetoothGatt == null) {
+            return;
+        }
+        mOperationQueue.setGatt(null);
+        mFrameChannel.cancelAll();
+        mReliableStream.cancelAll();
+        mDisplayStreamer.reset();
+        mPriorityController.detach();
+        mBluetoothGatt.close();
+        mBluetoothGatt = null;
+        mConnectionState = STATE_DISCONNECTED;
+    }
+
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return false;
+        }
+        mOperationQueue.enqueue(GattOperation.readCharacteristic(characteristic));
+        return true;
+    }
+
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enabled) {
+        return setCharacteristicNotification(characteristic, enabled, null);
+    }
+
+    /**
+     * Enables or disables notifications of {@code characteristic}. For the heart rate and HM-10
+     * characteristics this also queues the write of their CCCD, without which the peer never
+     * sends a notification.
+     *
+     * @param callback Completion of the CCCD write, may be null. Not called if there is none.
+     */
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enabled,
+                                                 GattOperation.Callback callback) {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return false;
+        }
+        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+
+        if (BluetoothLeService.UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())
+                || BluetoothLeService.UUID_HM_10.equals(characteristic.getUuid())) {
+            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
+            if (descriptor == null) {
+                Log.w(TAG, "Client characteristic configuration descriptor not found");
+                return false;
+            }
+            mOperationQueue.enqueue(GattOperation.writeDescriptor(descriptor, enabled
+                    ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                    : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE).setCallback(callback));
+        }
+        return true;
+    }
+
+    public List<BluetoothGattService> getSupportedGattServices() {
+        if (mBluetoothGatt == null) return null;
+
+        return mBluetoothGatt.getServices();
+    }
+
+    public BluetoothGattCharacteristic getClockCharacteristic() {
+        return mClockCharacteristic;
+    }
+
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                                       GattOperation.Callback callback) {
+        return writeCharacteristic(characteristic, value, GattOperation.PRIORITY_INTERACTIVE,
+                callback);
+    }
+
+    /**
+     * @param priority {@code GattOperation} lane the packets wait in.
+     */
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                                       int priority, GattOperation.Callback callback) {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return false;
+        }
+        enqueuePackets(characteristic, value, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT,
+                priority, callback);
+        return true;
+    }
+
+    public boolean streamCharacteristic(BluetoothGattCharacteristic characteristic, byte[] data,
+                                        GattOperation.Callback callback) {
+        return streamCharacteristic(characteristic, data, GattOperation.PRIORITY_BULK, callback);
+    }
+
+    /**
+     * @param priority {@code GattOperation} lane the packets wait in.
+     */
+    public boolean streamCharacteristic(BluetoothGattCharacteristic characteristic, byte[] data,
+                                        int priority, GattOperation.Callback callback) {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "BluetoothGatt not initialized");
+            return false;
+        }
+        final int writeType = (characteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+                ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+        enqueuePackets(characteristic, data, writeType, priority, callback);
+        return true;
+    }
+
+    /**
+     * @return Longest time a GATT request of {@code priority} waited for its turn.
+     */
+    public long getMaxQueueWaitMs(int priority) {
+        return mOperationQueue.getMaxWaitMs(priority);
+    }
+
+    /**
+     * @return What the clock's firmware handles, or null until it is known: right after
+     *         service discovery, or one round trip later if the clock is probed. Clocks never
+     *         probed are legacy ones.
+     */
+    public ClockCapabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    public FrameChannel getFrameChannel() {
+        return mFrameChannel;
+    }
+
+    /**
+     * Sets the clock to the phone's local time, compensated for the link latency. Needs
+     * firmware that understands the binary protocol.
+     */
+    public void syncTime(TimeSyncEngine.Callback callback) {
+        mTimeSyncEngine.sync(callback);
+    }
+
+    /**
+     * Starts a set of settings sent as one frame and acknowledged once, see
+     * {@link SettingsBatch}. Needs firmware that understands the binary protocol.
+     */
+    public SettingsBatch batch() {
+        return new SettingsBatch(mFrameChannel);
+    }
+
+    /**
+     * @return The model of this clock's settings. Changes are sent with
+     *         {@link #pushClockState}, and again on reconnect if the clock lost them.
+     */
+    public ClockState getClockState() {
+        return mClockState;
+    }
+
+    /**
+     * Sends the settings of {@link #getClockState()} the clock hasn't acknowledged yet, in one
+     * frame.
+     *
+     * @param callback Outcome, may be null.
+     */
+    public void pushClockState(ClockStateSync.Callback callback) {
+        mClockStateSync.push(callback);
+    }
+
+    /**
+     * @return Acknowledged stream to the clock over writes without response, for transfers
+     *         larger than a frame.
+     */
+    public ReliableStream getReliableStream() {
+        return mReliableStream;
+    }
+
+    /**
+     * @return Streams digits straight to the tubes, see {@link DisplayStreamer}.
+     */
+    public DisplayStreamer getDisplayStreamer() {
+        return mDisplayStreamer;
+    }
+
+    /**
+     * Sends {@code data} to the clock's EEPROM as blob {@code id}, resuming an earlier transfer
+     * of the same payload. See {@link BulkTransfer}.
+     *
+     * @param listener Progress and outcome, may be null.
+     */
+    public BulkTransfer startBulkTransfer(int id, byte[] data, BulkTransfer.Listener listener) {
+        final BulkTransfer transfer = new BulkTransfer(mContext, this, id, data, listener);
+        transfer.start();
+        return transfer;
+    }
+
+    /**
+     * Uploads a digit sequence, encoded with {@code DigitSequenceCodec}, to be played with
+     * {@link #playDigitSequence}.
+     *
+     * @param listener Progress and outcome, may be null.
+     */
+    public BulkTransfer uploadDigitSequence(int id, List<int[]> frames,
+                                            BulkTransfer.Listener listener) {
+        return startBulkTransfer(id, DigitSequenceCodec.encode(frames), listener);
+    }
+
+    /**
+     * Plays the sequence uploaded last on the tubes. Digits streamed with the
+     * {@link DisplayStreamer} take precedence while they come.
+     *
+     * @param intervalMs Time each frame is shown, 0 to stop playing.
+     * @param callback Completion, may be null.
+     *
+     * @return true if the command was queued.
+     */
+    public boolean playDigitSequence(int intervalMs, boolean loop,
+                                     FrameChannel.ResponseCallback callback) {
+        if (intervalMs < 0 || intervalMs > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid interval " + intervalMs);
+        }
+        final byte[] payload = {(byte) (intervalMs >>> 8), (byte) intervalMs,
+                (byte) (loop ? Frame.FLAG_LOOP : 0)};
+        return mFrameChannel.send(Frame.OP_PLAY_SEQUENCE, payload, 0,
+                intervalMs == 0 ? 0 : payload.length, callback,
+                FrameChannel.DEFAULT_RESPONSE_TIMEOUT_MS) >= 0;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public int getMaxPacketSize() {
+        return Packetizer.packetSizeForMtu(mMtu);
+    }
+
+    public int getQueueDepth() {
+        return mOperationQueue.size();
+    }
+
+    public void setStreamFlowControl(int capacityBytes, int drainBytesPerSecond) {
+        mOperationQueue.setFlowController(
+                new CreditFlowController(capacityBytes, drainBytesPerSecond));
+    }
+
+    public ConnectionPriorityController.Metrics getLinkMetrics() {
+        return mPriorityController.getMetrics();
+    }
+
+    public ReconnectionEngine.Metrics getReconnectionMetrics() {
+        return mReconnectionEngine.getMetrics();
+    }
+
+    /**
+     * Asks the clock what it handles, in one round trip, and caches the answer. Later
+     * connections probe it again by themselves whenever a binary answer expires.
+     *
+     * Only for clocks that run binary firmware: the legacy firmware doesn't answer, and stops
+     * accepting its {@code "HH,MM"} frame until it is power cycled. The clock is then cached as
+     * legacy and not probed again on its own.
+     *
+     * @return false if the clock isn't connected.
+     */
+    public boolean probeCapabilities() {
+        if (mClockCharacteristic == null) {
+            Log.w(TAG, "Clock characteristic not resolved");
+            return false;
+        }
+        mCapabilityCache.setProbeAllowed(mAddress, true);
+        sendCapabilityQuery();
+        return true;
+    }
+
+    private void enableClockNotifications() {
+        setCharacteristicNotification(mClockCharacteristic, true, new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mNotificationsEnabled = true;
+                } else {
+                    Log.w(TAG, "Enabling clock notifications failed: " + status);
+                }
+            }
+        });
+    }
+
+    private void sendCapabilityQuery() {
+        final int sequence = mFrameChannel.send(Frame.OP_GET_CAPABILITIES, NO_PAYLOAD, 0, 0,
+                new FrameChannel.ResponseCallback() {
+                    @Override
+                    public void onResponse(Frame response, long receivedAtNanos) {
+                        ClockCapabilities capabilities = ClockCapabilities.fromFrame(response);
+                        if (capabilities == null) {
+                            // Binary firmware from before the query.
+                            capabilities = ClockCapabilities.BASIC;
+                        }
+                        mCapabilityCache.put(mAddress, capabilities);
+                        onCapabilities(capabilities);
+                    }
+
+                    @Override
+                    public void onFailure(int status) {
+                        if (status == GattOperation.STATUS_TIMEOUT && mNotificationsEnabled) {
+                            mCapabilityCache.put(mAddress, ClockCapabilities.LEGACY);
+                            onCapabilities(ClockCapabilities.LEGACY);
+                        } else if (status == GattOperation.STATUS_TIMEOUT) {
+                            // The answer couldn't have been notified; legacy for this
+                            // connection only, probed again on the next one.
+                            Log.w(TAG, "Capability probe timed out without notifications");
+                            onCapabilities(ClockCapabilities.LEGACY);
+                        } else {
+                            // Lost the connection; probe again on the next one.
+                            Log.w(TAG, "Capability probe failed: " + status);
+                        }
+                    }
+                }, CAPABILITY_PROBE_TIMEOUT_MS, GattOperation.PRIORITY_CONTROL);
+        if (sequence < 0) Log.w(TAG, "Capability probe not sent");
+    }
+
+    private void onCapabilities(ClockCapabilities capabilities) {
+        Log.i(TAG, "Clock " + mAddress + ": " + capabilities);
+        mCapabilities = capabilities;
+        if (capabilities.getStreamWindow() > 0) {
+            mReliableStream.setWindowSize(
+                    Math.min(capabilities.getStreamWindow(), ReliableStream.MAX_WINDOW));
+        }
+        // Settings only go out to firmware that can report its own, or the reconnect would
+        // resend all of them every time.
+        if (capabilities.supports(Frame.OP_GET_SETTINGS) && mClockState.hasLocalFields()) {
+            mClockStateSync.reconcile(null);
+        }
+    }
+
+    /**
+     * @return The first characteristic with {@code uuid} in any discovered service, or null.
+     */
+    private static BluetoothGattCharacteristic findCharacteristic(BluetoothGatt gatt, UUID uuid) {
+        for (BluetoothGattService service : gatt.getServices()) {
+            final BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+            if (characteristic != null) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+
+    private void enqueuePackets(BluetoothGattCharacteristic characteristic, byte[] data,
+                                int writeType, int priority, GattOperation.Callback callback) {
+        // Everything written to the clock ends up in the Arduino's serial buffer, whatever the
+        // write type: a write with response is acknowledged by the HM-10 before the UART has
+        // drained it. Those writes are paced, and no packet may be larger than the buffer.
+        final CreditFlowController flowController = mOperationQueue.getFlowController();
+        final boolean paced = flowController != null
+                && BluetoothLeService.UUID_HM_10.equals(characteristic.getUuid());
+        final int packetSize = paced
+                ? Math.min(getMaxPacketSize(), flowController.getCapacity())
+                : getMaxPacketSize();
+        final List<byte[]> packets = Packetizer.split(data, packetSize);
+        final PacketGroupCallback groupCallback = new PacketGroupCallback(packets.size(), callback);
+        final List<GattOperation> operations = new ArrayList<GattOperation>(packets.size());
+        for (int i = 0; i < packets.size(); i++) {
+            final byte[] packet = packets.get(i);
+            // Packets of one payload stay together: other lanes may only preempt between
+            // payloads, never in the middle of a frame.
+            operations.add(GattOperation.writeCharacteristic(characteristic, packet, writeType)
+                    .setCreditCost(paced ? packet.length : 0).setPriority(priority)
+                    .setContinued(i < packets.size() - 1).setCallback(groupCallback));
+        }
+        mOperationQueue.enqueueAll(operations);
+    }
+
+    /**
+     * Reports a group of queued packets as a single operation: the first failure, or success
+     * once every packet has completed.
+     */
+    private static class PacketGroupCallback implements GattOperation.Callback {
+        private final GattOperation.Callback mCallback;
+        private int mRemaining;
+        private boolean mDone;
+
+        PacketGroupCallback(int packets, GattOperation.Callback callback) {
+            mRemaining = packets;
+            mCallback = callback;
+        }
+
+        @Override
+        public void onComplete(GattOperation operation, int status) {
+            synchronized (this) {
+                if (mDone) return;
+                mRemaining--;
+                if (status == BluetoothGatt.GATT_SUCCESS && mRemaining > 0) return;
+                mDone = true;
+            }
+            if (mCallback != null) {
+                mCallback.onComplete(operation, status);
+            }
+        }
+    }
+}
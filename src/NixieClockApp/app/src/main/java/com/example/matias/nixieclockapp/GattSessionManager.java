@@ -0,0 +1,299 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a {@link GattSession} per clock so a whole room of clocks can be driven at once.
+ *
+ * Each session has its own operation queue, so a write to one clock never waits for another;
+ * the only limit is how many links the Bluetooth controller can hold at a time. Android doesn't
+ * expose that number (most controllers manage 7, some fewer), so it is configurable: connections
+ * beyond it wait in a FIFO until a slot frees up. A slot is held from {@link #connect(String)}
+ * until the session is closed, or disconnects and isn't being reconnected.
+ *
+ * GATT events of every session are forwarded to the {@code GattSession.Listener} given at
+ * construction.
+ */
+public class GattSessionManager implements GattSession.Listener {
+    private final static String TAG = GattSessionManager.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+
+    /**
+     * Receives the results of a fan-out write.
+     */
+    public interface FanOutCallback {
+        /**
+         * Called for every clock as soon as its write completed or failed.
+         */
+        void onDeviceComplete(String address, int status);
+
+        /**
+         * Called once, after every clock reported.
+         */
+        void onComplete(int succeeded, int failed);
+    }
+
+    private final Context mContext;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final Handler mHandler;
+    private final CapabilityCache mCapabilityCache;
+    private final GattSession.Listener mListener;
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    private final Map<String, GattSession> mSessions = new LinkedHashMap<String, GattSession>();
+    private final Set<String> mActive = new LinkedHashSet<String>();
+    private final ArrayDeque<String> mPending = new ArrayDeque<String>();
+
+    public GattSessionManager(Context context, BluetoothAdapter adapter, Handler handler,
+                              CapabilityCache capabilityCache, GattSession.Listener listener) {
+        mContext = context;
+        mBluetoothAdapter = adapter;
+        mHandler = handler;
+        mCapabilityCache = capabilityCache;
+        mListener = listener;
+    }
+
+    /**
+     * Sets how many clocks may be connected at the same time. Lowering it doesn't drop existing
+     * connections, it only holds back new ones.
+     */
+    public void setMaxConnections(int maxConnections) {
+        synchronized (this) {
+            mMaxConnections = Math.max(1, maxConnections);
+        }
+        promotePending();
+    }
+
+    public synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Connects to {@code address}, or queues the connection if every slot is taken.
+     *
+     * @return The clock's session, or null if the address is invalid.
+     */
+    public GattSession connect(String address) {
+        if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+            Log.w(TAG, "Invalid address " + address);
+            return null;
+        }
+        final GattSession session;
+        final boolean start;
+        synchronized (this) {
+            session = getOrCreateLocked(address);
+            if (mActive.contains(address)) {
+                start = true;
+            } else if (mActive.size() < mMaxConnections) {
+                mActive.add(address);
+                start = true;
+            } else {
+                if (!mPending.contains(address)) {
+                    mPending.add(address);
+                    Log.i(TAG, "All " + mMaxConnections + " slots taken, " + address
+                            + " waits (" + mPending.size() + " pending)");
+                }
+                start = false;
+            }
+        }
+        if (start && !session.connect()) {
+            release(address);
+        }
+        return session;
+    }
+
+    /**
+     * Connects to every address, as many at once as there are slots.
+     */
+    public void connectAll(Collection<String> addresses) {
+        for (String address : addresses) {
+            connect(address);
+        }
+    }
+
+    public void disconnect(String address) {
+        final GattSession session;
+        synchronized (this) {
+            mPending.remove(address);
+            session = mSessions.get(address);
+        }
+        if (session != null) {
+            session.disconnect();
+        }
+    }
+
+    /**
+     * Closes the clock's connection and forgets its session.
+     */
+    public void close(String address) {
+        final GattSession session;
+        synchronized (this) {
+            mPending.remove(address);
+            session = mSessions.remove(address);
+        }
+        if (session != null) {
+            session.close();
+            release(address);
+        }
+    }
+
+    public void closeAll() {
+        final List<GattSession> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<GattSession>(mSessions.values());
+            mSessions.clear();
+            mActive.clear();
+            mPending.clear();
+        }
+        for (GattSession session : sessions) {
+            session.close();
+        }
+    }
+
+    public synchronized GattSession get(String address) {
+        return mSessions.get(address);
+    }
+
+    public synchronized List<GattSession> getSessions() {
+        return new ArrayList<GattSession>(mSessions.values());
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Writes {@code value} to the clock characteristic of every connected clock. The writes go
+     * through each clock's own queue, so they are on air in parallel.
+     *
+     * @param callback Per-clock and overall results, may be null.
+     *
+     * @return The number of clocks the write was queued on.
+     */
+    public int writeAll(byte[] value, final FanOutCallback callback) {
+        final List<GattSession> targets = new ArrayList<GattSession>();
+        for (GattSession session : getSessions()) {
+            if (session.getConnectionState() == GattSession.STATE_CONNECTED
+                    && session.getClockCharacteristic() != null) {
+                targets.add(session);
+            }
+        }
+        final FanOut fanOut = new FanOut(targets.size(), callback);
+        int queued = 0;
+        for (final GattSession session : targets) {
+            final BluetoothGattCharacteristic characteristic = session.getClockCharacteristic();
+            final GattOperation.Callback deviceCallback = new GattOperation.Callback() {
+                @Override
+                public void onComplete(GattOperation operation, int status) {
+                    fanOut.report(session.getAddress(), status);
+                }
+            };
+            if (characteristic != null
+                    && session.writeCharacteristic(characteristic, value, deviceCallback)) {
+                queued++;
+            } else {
+                fanOut.report(session.getAddress(), GattOperation.STATUS_REJECTED);
+            }
+        }
+        if (targets.isEmpty() && callback != null) {
+            callback.onComplete(0, 0);
+        }
+        Log.i(TAG, "Fan-out write queued on " + queued + " of " + targets.size() + " clocks");
+        return queued;
+    }
+
+    @Override
+    public void onConnectionStateChanged(GattSession session, int state, int status) {
+        if (state == GattSession.STATE_DISCONNECTED && !session.isActive()) {
+            release(session.getAddress());
+        }
+        mListener.onConnectionStateChanged(session, state, status);
+    }
+
+    @Override
+    public void onServicesDiscovered(GattSession session) {
+        mListener.onServicesDiscovered(session);
+    }
+
+    @Override
+    public void onDataAvailable(GattSession session, BluetoothGattCharacteristic characteristic,
+                                ByteBuffer payload) {
+        mListener.onDataAvailable(session, characteristic, payload);
+    }
+
+    private GattSession getOrCreateLocked(String address) {
+        GattSession session = mSessions.get(address);
+        if (session == null) {
+            session = new GattSession(mContext, mBluetoothAdapter, address, mHandler,
+                    mCapabilityCache, this);
+            mSessions.put(address, session);
+        }
+        return session;
+    }
+
+    private void release(String address) {
+        synchronized (this) {
+            if (!mActive.remove(address)) return;
+        }
+        promotePending();
+    }
+
+    private void promotePending() {
+        while (true) {
+            final String address;
+            synchronized (this) {
+                if (mPending.isEmpty() || mActive.size() >= mMaxConnections) return;
+                address = mPending.poll();
+            }
+            connect(address);
+        }
+    }
+
+    /**
+     * Collects the per-clock results of {@link #writeAll}.
+     */
+    private static class FanOut {
+        private final FanOutCallback mCallback;
+        private int mRemaining;
+        private int mSucceeded;
+        private int mFailed;
+
+        FanOut(int devices, FanOutCallback callback) {
+            mRemaining = devices;
+            mCallback = callback;
+        }
+
+        void report(String address, int status) {
+            final boolean done;
+            synchronized (this) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mSucceeded++;
+                } else {
+                    mFailed++;
+                }
+                done = --mRemaining == 0;
+            }
+            if (mCallback == null) return;
+            mCallback.onDeviceComplete(address, status);
+            if (done) {
+                mCallback.onComplete(mSucceeded, mFailed);
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.matias.nixieclockapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fans received payloads out to subscribers that consume them at different rates.
+ *
+ * Frame subscribers (the UI) get the latest payload at most once per display frame, on the main
+ * thread: whatever arrives between two frames is coalesced, so a clock notifying faster than the
+ * screen refreshes doesn't queue up work on the main thread.
+ *
+ * Stream subscribers (logging, recording) get every payload in order on their own thread,
+ * through a bounded queue whose behavior when full is picked per subscriber:
+ * <ul>
+ *     <li>{@link #POLICY_DROP_OLDEST} overwrites the oldest queued payload.</li>
+ *     <li>{@link #POLICY_LATEST_ONLY} keeps a single payload, the newest.</li>
+ *     <li>{@link #POLICY_BLOCK} holds the producer until there is room, for at most
+ *     {@link #MAX_BLOCK_MS} so a stuck subscriber can't stall the binder thread; the payload is
+ *     dropped after that.</li>
+ * </ul>
+ * Payloads are copied into buffers allocated when subscribing, so publishing doesn't allocate.
+ * The buffers handed to subscribers are only valid for the duration of the call.
+ */
+public class NotificationDispatcher {
+    private final static String TAG = NotificationDispatcher.class.getSimpleName();
+
+    public static final int POLICY_DROP_OLDEST = 0;
+    public static final int POLICY_LATEST_ONLY = 1;
+    public static final int POLICY_BLOCK = 2;
+
+    public static final int DEFAULT_QUEUE_SIZE = 16;
+    public static final long MAX_BLOCK_MS = 50;
+
+    /**
+     * Receives payloads. Stream subscribers are called on their own thread, frame subscribers on
+     * the main thread.
+     */
+    public interface Subscriber {
+        void onData(String address, ByteBuffer payload);
+    }
+
+    private final int mPayloadCapacity;
+    private final Object mLock = new Object();
+    private volatile Subscription[] mSubscriptions = new Subscription[0];
+
+    public NotificationDispatcher() {
+        this(ReceiveRing.DEFAULT_SLOT_CAPACITY);
+    }
+
+    /**
+     * @param payloadCapacity Largest payload delivered; longer ones are dropped.
+     */
+    public NotificationDispatcher(int payloadCapacity) {
+        mPayloadCapacity = payloadCapacity;
+    }
+
+    /**
+     * Delivers every payload on a dedicated thread. Subscribing twice has no effect.
+     *
+     * @param address Only payloads from this clock, or null for all clocks.
+     * @param policy One of {@link #POLICY_DROP_OLDEST}, {@link #POLICY_LATEST_ONLY} or
+     *               {@link #POLICY_BLOCK}.
+     * @param queueSize Payloads held while the subscriber is busy. Ignored for
+     *                  {@link #POLICY_LATEST_ONLY}.
+     */
+    public void subscribe(Subscriber subscriber, String address, int policy, int queueSize) {
+        final int slots = policy == POLICY_LATEST_ONLY ? 1 : Math.max(1, queueSize);
+        add(new StreamSubscription(subscriber, address, policy, slots, mPayloadCapacity));
+    }
+
+    /**
+     * Delivers the latest payload at most once per display frame on the main thread.
+     *
+     * @param address Only payloads from this clock, or null for all clocks.
+     */
+    public void subscribeOnFrame(Subscriber subscriber, String address) {
+        add(new FrameSubscription(subscriber, address, mPayloadCapacity));
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        synchronized (mLock) {
+            final Subscription[] current = mSubscriptions;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].mSubscriber == subscriber) {
+                    current[i].stop();
+                    final Subscription[] subscriptions = new Subscription[current.length - 1];
+                    System.arraycopy(current, 0, subscriptions, 0, i);
+                    System.arraycopy(current, i + 1, subscriptions, i, current.length - i - 1);
+                    mSubscriptions = subscriptions;
+                    return;
+                }
+            }
+        }
+    }
+
+    public void unsubscribeAll() {
+        synchronized (mLock) {
+            for (Subscription subscription : mSubscriptions) {
+                subscription.stop();
+            }
+            mSubscriptions = new Subscription[0];
+        }
+    }
+
+    /**
+     * Hands a payload to every subscriber. Called on the binder thread that received it.
+     */
+    public void publish(String address, ByteBuffer payload) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mAddress == null || subscription.mAddress.equals(address)) {
+                payload.rewind();
+                subscription.offer(address, payload);
+            }
+        }
+    }
+
+    /**
+     * @return Payloads dropped by {@code subscriber}'s policy, or -1 if it isn't subscribed.
+     */
+    public long getDroppedCount(Subscriber subscriber) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mSubscriber == subscriber) {
+                return subscription.getDroppedCount();
+            }
+        }
+        return -1;
+    }
+
+    private void add(Subscription subscription) {
+        synchronized (mLock) {
+            for (Subscription registered : mSubscriptions) {
+                if (registered.mSubscriber == subscription.mSubscriber) return;
+            }
+            final Subscription[] subscriptions =
+                    Arrays.copyOf(mSubscriptions, mSubscriptions.length + 1);
+            subscriptions[subscriptions.length - 1] = subscription;
+            mSubscriptions = subscriptions;
+        }
+        subscription.start();
+    }
+
+    private static abstract class Subscription {
+        final Subscriber mSubscriber;
+        final String mAddress;
+        long mDroppedCount;
+
+        Subscription(Subscriber subscriber, String address) {
+            mSubscriber = subscriber;
+            mAddress = address;
+        }
+
+        abstract void start();
+
+        abstract void stop();
+
+        abstract void offer(String address, ByteBuffer payload);
+
+        synchronized long getDroppedCount() {
+            return mDroppedCount;
+        }
+    }
+
+    /**
+     * Bounded ring of payload copies drained by a worker thread.
+     */
+    private static class StreamSubscription extends Subscription implements Runnable {
+        private final int mPolicy;
+        private final ByteBuffer[] mSlots;
+        private final String[] mAddresses;
+        // Buffer being delivered; swapped with the head slot so the producer never touches it.
+        private ByteBuffer mDelivering;
+        private int mHead;
+        private int mCount;
+        private boolean mRunning;
+
+        StreamSubscription(Subscriber subscriber, String address, int policy, int slots,
+                           int payloadCapacity) {
+            super(subscriber, address);
+            mPolicy = policy;
+            mSlots = new ByteBuffer[slots];
+            mAddresses = new String[slots];
+            for (int i = 0; i < slots; i++) {
+                mSlots[i] = ByteBuffer.allocate(payloadCapacity);
+            }
+            mDelivering = ByteBuffer.allocate(payloadCapacity);
+        }
+
+        @Override
+        synchronized void start() {
+            mRunning = true;
+            new Thread(this, TAG).start();
+        }
+
+        @Override
+        synchronized void stop() {
+            mRunning = false;
+            notifyAll();
+        }
+
+        @Override
+        synchronized void offer(String address, ByteBuffer payload) {
+            if (!mRunning) return;
+            if (payload.remaining() > mSlots[0].capacity()) {
+                mDroppedCount++;
+                return;
+            }
+            if (mCount == mSlots.length) {
+                if (mPolicy == POLICY_BLOCK && !awaitRoomLocked()) {
+                    mDroppedCount++;
+                    return;
+                }
+                if (mCount == mSlots.length) {
+                    // DROP_OLDEST and LATEST_ONLY: the oldest payload makes room.
+                    mHead = (mHead + 1) % mSlots.length;
+                    mCount--;
+                    mDroppedCount++;
+                }
+            }
+            final int tail = (mHead + mCount) % mSlots.length;
+            final ByteBuffer slot = mSlots[tail];
+            slot.clear();
+            slot.put(payload);
+            slot.flip();
+            mAddresses[tail] = address;
+            mCount++;
+            notifyAll();
+        }
+
+        private boolean awaitRoomLocked() {
+            final long deadline = System.nanoTime() + MAX_BLOCK_MS * 1000000L;
+            while (mRunning && mCount == mSlots.length) {
+                final long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+                if (remainingMs <= 0) return false;
+                try {
+                    wait(remainingMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return mRunning;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final ByteBuffer slot;
+                final String address;
+                synchronized (this) {
+                    while (mRunning && mCount == 0) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Log.w(TAG, "Subscriber thread interrupted");
+                            return;
+                        }
+                    }
+                    if (!mRunning) return;
+                    slot = mSlots[mHead];
+                    mSlots[mHead] = mDelivering;
+                    mDelivering = slot;
+                    address = mAddresses[mHead];
+                    mAddresses[mHead] = null;
+                    mHead = (mHead + 1) % mSlots.length;
+                    mCount--;
+                    notifyAll();
+                }
+                mSubscriber.onData(address, slot);
+            }
+        }
+    }
+
+    /**
+     * Keeps the latest payload and delivers it from a {@code Choreographer} frame callback.
+     */
+    private static class FrameSubscription extends Subscription
+            implements Choreographer.FrameCallback, Runnable {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        // Written by the producer, swapped with mFront when a frame is drawn.
+        private ByteBuffer mBack;
+        private ByteBuffer mFront;
+        private String mBackAddress;
+        private boolean mPending;
+        private boolean mScheduled;
+        private boolean mRunning;
+
+        FrameSubscription(Subscriber subscriber, String address, int payloadCapacity) {
+            super(subscriber, address);
+            mBack = ByteBuffer.allocate(payloadCapacity);
+            mFront = ByteBuffer.allocate(payloadCapacity);
+        }
+
+        @Override
+        synchronized void start() {
+            mRunning = true;
+        }
+
+        @Override
+        synchronized void stop() {
+            mRunning = false;
+            mMainHandler.removeCallbacks(this);
+        }
+
+        @Override
+        synchronized void offer(String address, ByteBuffer payload) {
+            if (!mRunning) return;
+            if (payload.remaining() > mBack.capacity()) {
+                mDroppedCount++;
+                return;
+            }
+            if (mPending) {
+                // Superseded before it was drawn.
+                mDroppedCount++;
+            }
+            mBack.clear();
+            mBack.put(payload);
+            mBack.flip();
+            mBackAddress = address;
+            mPending = true;
+            if (!mScheduled) {
+                mScheduled = true;
+                // Choreographer is bound to the main looper, so the callback is posted from there.
+                mMainHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            final ByteBuffer front;
+            final String address;
+            synchronized (this) {
+                mScheduled = false;
+                if (!mRunning || !mPending) return;
+                front = mBack;
+                mBack = mFront;
+                mFront = front;
+                address = mBackAddress;
+                mPending = false;
+            }
+            mSubscriber.onData(address, front);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.matias.nixieclockapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits outbound payloads into packets that fit in one ATT write (MTU - 3 bytes, at most 512).
+ * There is no inbound counterpart: the HM-10 notifies its serial stream in chunks of its own,
+ * and {@code FrameChannel} finds the frames in it.
+ */
+public class Packetizer {
+    // ATT header of a write request / notification: opcode (1) + attribute handle (2).
+    public static final int ATT_HEADER_SIZE = 3;
+    public static final int DEFAULT_MTU = 23;
+    // Largest MTU Android will ask for.
+    public static final int MAX_MTU = 517;
+    // ATT limits an attribute value to 512 bytes, whatever the MTU.
+    public static final int MAX_ATTRIBUTE_SIZE = 512;
+
+    private Packetizer() {
+    }
+
+    /**
+     * @return Largest value that fits in a single packet for the given ATT MTU.
+     */
+    public static int packetSizeForMtu(int mtu) {
+        return Math.min(MAX_ATTRIBUTE_SIZE, Math.max(DEFAULT_MTU, mtu) - ATT_HEADER_SIZE);
+    }
+
+    /**
+     * Splits {@code data} in packets of at most {@code packetSize} bytes. An empty payload
+     * produces a single empty packet.
+     */
+    public static List<byte[]> split(byte[] data, int packetSize) {
+        if (packetSize <= 0) {
+            throw new IllegalArgumentException("packetSize must be positive");
+        }
+        final int count = Math.max(1, (data.length + packetSize - 1) / packetSize);
+        final List<byte[]> packets = new ArrayList<byte[]>(count);
+        for (int offset = 0, i = 0; i < count; i++, offset += packetSize) {
+            packets.add(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + packetSize)));
+        }
+        return packets;
+    }
+}
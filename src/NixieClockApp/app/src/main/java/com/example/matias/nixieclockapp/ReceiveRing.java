@@ -0,0 +1,84 @@
+package com.example.matias.nixieclockapp;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receive path for notifications and reads that doesn't allocate once it is built.
+ *
+ * Each inbound value is copied as it is into the next of a ring of preallocated buffers; the
+ * HM-10 forwards its serial stream in notifications of whatever size, so frames that span
+ * several of them are put back together by the consumer. A value is handed out as a read-only
+ * {@code ByteBuffer} view of its slot (position 0, limit at the end of the value); the views are
+ * created up front too, so nothing is allocated per notification.
+ *
+ * A view stays valid until the ring wraps around to its slot, i.e. for the next
+ * {@code slots - 1} values. Consumers that keep data for longer, or hand it to another thread
+ * that may fall behind, must copy it out.
+ */
+public class ReceiveRing {
+    private final static String TAG = ReceiveRing.class.getSimpleName();
+
+    public static final int DEFAULT_SLOTS = 8;
+    public static final int DEFAULT_SLOT_CAPACITY = 1024;
+
+    private final ByteBuffer[] mSlots;
+    private final ByteBuffer[] mViews;
+    private int mCurrent;
+
+    private long mPayloadCount;
+    private long mDroppedCount;
+
+    public ReceiveRing() {
+        this(DEFAULT_SLOTS, DEFAULT_SLOT_CAPACITY);
+    }
+
+    public ReceiveRing(int slots, int slotCapacity) {
+        if (slots < 2) {
+            throw new IllegalArgumentException("At least two slots are needed");
+        }
+        mSlots = new ByteBuffer[slots];
+        mViews = new ByteBuffer[slots];
+        for (int i = 0; i < slots; i++) {
+            mSlots[i] = ByteBuffer.allocate(slotCapacity);
+            mViews[i] = mSlots[i].asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Copies a value read or notified.
+     *
+     * @return A view of the value, or null if it doesn't fit in a slot.
+     */
+    public synchronized ByteBuffer put(byte[] value) {
+        final int length = value != null ? value.length : 0;
+        final ByteBuffer slot = mSlots[mCurrent];
+        if (length > slot.capacity()) {
+            mDroppedCount++;
+            Log.w(TAG, "Value larger than " + slot.capacity() + " bytes dropped");
+            return null;
+        }
+        slot.clear();
+        if (length > 0) {
+            slot.put(value, 0, length);
+        }
+        final ByteBuffer view = mViews[mCurrent];
+        view.limit(slot.position());
+        view.position(0);
+        mPayloadCount++;
+        mCurrent = (mCurrent + 1) % mSlots.length;
+        return view;
+    }
+
+    public synchronized long getPayloadCount() {
+        return mPayloadCount;
+    }
+
+    /**
+     * @return Values dropped because they didn't fit in a slot.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
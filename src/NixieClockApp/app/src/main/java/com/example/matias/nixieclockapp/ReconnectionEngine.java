@@ -0,0 +1,210 @@
+package com.example.matias.nixieclockapp;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Brings a dropped connection back without user interaction.
+ *
+ * Every unexpected disconnect is classified by its GATT status and retried after a jittered
+ * exponential backoff (250 ms doubling up to 30 s, half of it randomized so a room full of clocks
+ * doesn't retry in lockstep):
+ * <ul>
+ *     <li>133 (GATT_ERROR) and 22 (connection terminated by the local host) mean the stack gave
+ *     up on the {@code BluetoothGatt} object; it is closed and a new one is opened.</li>
+ *     <li>8 (connection timeout) means the clock went out of range; a background connection
+ *     ({@code autoConnect}) is opened so the controller reconnects as soon as it is seen again.</li>
+ *     <li>Anything else retries on the existing {@code BluetoothGatt}.</li>
+ * </ul>
+ * After {@link #MAX_DIRECT_ATTEMPTS} failed attempts the engine switches to a background
+ * connection, which waits in the controller instead of timing out every 30 s.
+ */
+public class ReconnectionEngine {
+    private final static String TAG = ReconnectionEngine.class.getSimpleName();
+
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_RETRY = 1;
+    public static final int ACTION_REOPEN = 2;
+    public static final int ACTION_BACKGROUND = 3;
+
+    // GATT statuses not exposed as BluetoothGatt constants.
+    public static final int GATT_CONN_TIMEOUT = 8;
+    public static final int GATT_CONN_TERMINATE_PEER_USER = 19;
+    public static final int GATT_CONN_TERMINATE_LOCAL_HOST = 22;
+    public static final int GATT_ERROR = 133;
+
+    public static final long BASE_DELAY_MS = 250;
+    public static final long MAX_DELAY_MS = 30000;
+    public static final int MAX_DIRECT_ATTEMPTS = 5;
+
+    /**
+     * Carries out a reconnection attempt. Called on the engine's handler thread.
+     */
+    public interface Host {
+        /**
+         * @param action One of {@link #ACTION_RETRY}, {@link #ACTION_REOPEN} or
+         *               {@link #ACTION_BACKGROUND}.
+         * @return true if the attempt was started.
+         */
+        boolean reconnect(int action);
+    }
+
+    /**
+     * Snapshot of the engine's reconnection history.
+     */
+    public static class Metrics {
+        public final long disconnects;
+        public final long attempts;
+        public final long reconnects;
+        public final long lastReconnectMs;
+        public final long maxReconnectMs;
+
+        Metrics(long disconnects, long attempts, long reconnects, long lastReconnectMs,
+                long maxReconnectMs) {
+            this.disconnects = disconnects;
+            this.attempts = attempts;
+            this.reconnects = reconnects;
+            this.lastReconnectMs = lastReconnectMs;
+            this.maxReconnectMs = maxReconnectMs;
+        }
+
+        @Override
+        public String toString() {
+            return "disconnects=" + disconnects + " attempts=" + attempts
+                    + " reconnects=" + reconnects + " lastMs=" + lastReconnectMs
+                    + " maxMs=" + maxReconnectMs;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Host mHost;
+    private final Random mRandom = new Random();
+
+    private boolean mEnabled;
+    private int mAttempt;
+    private int mPendingAction = ACTION_NONE;
+    private long mDisconnectedAtMs = -1;
+
+    private long mDisconnectCount;
+    private long mAttemptCount;
+    private long mReconnectCount;
+    private long mLastReconnectMs;
+    private long mMaxReconnectMs;
+
+    private final Runnable mAttemptRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final int action;
+            final int attempt;
+            synchronized (ReconnectionEngine.this) {
+                if (!mEnabled || mPendingAction == ACTION_NONE) return;
+                action = mPendingAction;
+                mPendingAction = ACTION_NONE;
+                attempt = ++mAttempt;
+                mAttemptCount++;
+            }
+            Log.i(TAG, "Reconnection attempt " + attempt + ", action " + action);
+            if (!mHost.reconnect(action)) {
+                // The attempt couldn't even be started; go through the backoff again.
+                onDisconnected(GATT_ERROR);
+            }
+        }
+    };
+
+    public ReconnectionEngine(Handler handler, Host host) {
+        mHandler = handler;
+        mHost = host;
+    }
+
+    /**
+     * Maps a disconnect status to the action needed to recover from it.
+     */
+    public static int classify(int status) {
+        switch (status) {
+            case GATT_ERROR:
+            case GATT_CONN_TERMINATE_LOCAL_HOST:
+                return ACTION_REOPEN;
+            case GATT_CONN_TIMEOUT:
+                return ACTION_BACKGROUND;
+            default:
+                return ACTION_RETRY;
+        }
+    }
+
+    /**
+     * Arms the engine: disconnects from now on are recovered automatically. Called when the
+     * user asks for a connection.
+     */
+    public synchronized void start() {
+        mEnabled = true;
+        mAttempt = 0;
+    }
+
+    /**
+     * Disarms the engine and cancels a scheduled attempt. Called when the user disconnects.
+     */
+    public synchronized void stop() {
+        mEnabled = false;
+        mPendingAction = ACTION_NONE;
+        mDisconnectedAtMs = -1;
+        mHandler.removeCallbacks(mAttemptRunnable);
+    }
+
+    public synchronized void onConnected() {
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mPendingAction = ACTION_NONE;
+        mAttempt = 0;
+        if (mDisconnectedAtMs >= 0) {
+            mLastReconnectMs = SystemClock.elapsedRealtime() - mDisconnectedAtMs;
+            mMaxReconnectMs = Math.max(mMaxReconnectMs, mLastReconnectMs);
+            mReconnectCount++;
+            mDisconnectedAtMs = -1;
+            Log.i(TAG, "Reconnected in " + mLastReconnectMs + " ms: " + metricsLocked());
+        }
+    }
+
+    /**
+     * Schedules the next attempt for a disconnect (or failed connection attempt) with the given
+     * GATT status.
+     */
+    public synchronized void onDisconnected(int status) {
+        if (!mEnabled) return;
+        if (mDisconnectedAtMs < 0) {
+            mDisconnectedAtMs = SystemClock.elapsedRealtime();
+            mDisconnectCount++;
+        }
+        int action = classify(status);
+        if (mAttempt >= MAX_DIRECT_ATTEMPTS) {
+            action = ACTION_BACKGROUND;
+        }
+        mPendingAction = action;
+        final long delayMs = nextDelayLocked();
+        Log.i(TAG, "Disconnected with status " + status + ", action " + action + " in "
+                + delayMs + " ms");
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mHandler.postDelayed(mAttemptRunnable, delayMs);
+    }
+
+    public synchronized boolean isReconnecting() {
+        return mDisconnectedAtMs >= 0;
+    }
+
+    public synchronized Metrics getMetrics() {
+        return new Metrics(mDisconnectCount, mAttemptCount, mReconnectCount, mLastReconnectMs,
+                mMaxReconnectMs);
+    }
+
+    private long nextDelayLocked() {
+        final long ceiling = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(mAttempt, 16));
+        final long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    private String metricsLocked() {
+        return new Metrics(mDisconnectCount, mAttemptCount, mReconnectCount, mLastReconnectMs,
+                mMaxReconnectMs).toString();
+    }
+}
@@ -0,0 +1,437 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.matias.nixieclockapp.protocol.Frame;
+import com.example.matias.nixieclockapp.protocol.FrameEncoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reliable byte stream to one clock over writes without response.
+ *
+ * Data is cut in {@code OP_DATA} segments, each a single frame that fits one packet, numbered
+ * with an 8 bit segment sequence of its own. Up to {@link #getWindowSize()} segments are in
+ * flight at once. The clock answers with {@code OP_DATA_ACK}, whose sequence is the next segment
+ * it expects (cumulative ack) and whose payload byte is a bitmap of the segments after that one
+ * it already buffered (selective ack, bit 0 for the expected segment + 1).
+ *
+ * A hole is retransmitted right away once {@link #FAST_RETRANSMIT_THRESHOLD} acks reported
+ * segments past it (fast retransmit); otherwise unacknowledged segments are sent again when the
+ * retransmission timer, derived from the measured round trip as in RFC 6298, runs out. The stream
+ * is (re)opened with {@code OP_STREAM_OPEN} before the first segment of a connection.
+ */
+public class ReliableStream {
+    private final static String TAG = ReliableStream.class.getSimpleName();
+
+    public static final int DEFAULT_WINDOW = 4;
+    // Bits in the selective ack bitmap.
+    public static final int MAX_WINDOW = 8;
+    public static final int FAST_RETRANSMIT_THRESHOLD = 2;
+
+    static final long INITIAL_RTO_MS = 500;
+    static final long MIN_RTO_MS = 100;
+    static final long MAX_RTO_MS = 4000;
+    // Timeouts in a row before the stream gives up.
+    static final int MAX_TIMEOUTS = 6;
+
+    private static final int SEQUENCE_COUNT = 256;
+
+    /**
+     * Completion of a {@link #send}. Called on a binder thread or the session's handler thread.
+     */
+    public interface Callback {
+        /**
+         * @param status {@code BluetoothGatt.GATT_SUCCESS} once the clock acknowledged every
+         *               byte, otherwise a {@code GattOperation.STATUS_} code.
+         */
+        void onComplete(int status);
+    }
+
+    /**
+     * Counters since the session was created.
+     */
+    public static class Metrics {
+        public final long segmentsSent;
+        public final long retransmissions;
+        public final long fastRetransmissions;
+        public final long timeouts;
+        public final double smoothedRttMs;
+        public final long rtoMs;
+
+        Metrics(long segmentsSent, long retransmissions, long fastRetransmissions,
+                long timeouts, double smoothedRttMs, long rtoMs) {
+            this.segmentsSent = segmentsSent;
+            this.retransmissions = retransmissions;
+            this.fastRetransmissions = fastRetransmissions;
+            this.timeouts = timeouts;
+            this.smoothedRttMs = smoothedRttMs;
+            this.rtoMs = rtoMs;
+        }
+
+        @Override
+        public String toString() {
+            return "sent=" + segmentsSent + " retransmitted=" + retransmissions
+                    + " fast=" + fastRetransmissions + " timeouts=" + timeouts
+                    + " srtt=" + smoothedRttMs + " rto=" + rtoMs;
+        }
+    }
+
+    private static class Transfer {
+        final byte[] mData;
+        final Callback mCallback;
+        int mOffset;
+
+        Transfer(byte[] data, Callback callback) {
+            mData = data;
+            mCallback = callback;
+        }
+    }
+
+    private static class Segment {
+        byte[] mFrame;
+        Transfer mTransfer;
+        boolean mLast;
+        long mSentAtNanos;
+        boolean mRetransmitted;
+        boolean mFastRetransmitted;
+        boolean mSacked;
+    }
+
+    private final GattSession mSession;
+    private final FrameChannel mChannel;
+    private final Handler mHandler;
+    private final Segment[] mSegments = new Segment[SEQUENCE_COUNT];
+    private final ArrayDeque<Transfer> mTransfers = new ArrayDeque<Transfer>();
+
+    private int mWindow = DEFAULT_WINDOW;
+    private boolean mOpen;
+    private boolean mOpening;
+    // Oldest unacknowledged segment and next segment to assign.
+    private int mBase;
+    private int mNext;
+    private int mDuplicateAcks;
+    private int mTimeoutsInARow;
+    private boolean mTimerArmed;
+
+    private double mSrttMs;
+    private double mRttVarMs;
+    private long mRtoMs = INITIAL_RTO_MS;
+
+    private long mSegmentsSent;
+    private long mRetransmissions;
+    private long mFastRetransmissions;
+    private long mTimeouts;
+
+    private final Runnable mRetransmitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onRetransmitTimeout();
+        }
+    };
+
+    private final FrameChannel.FrameListener mAckListener = new FrameChannel.FrameListener() {
+        @Override
+        public void onFrame(Frame frame, long receivedAtNanos) {
+            if (frame.getOpcode() == Frame.OP_DATA_ACK) {
+                onAck(frame.getSequence(), frame.getLength() > 0 ? frame.getPayloadByte(0) : 0,
+                        receivedAtNanos);
+            }
+        }
+    };
+
+    ReliableStream(GattSession session, FrameChannel channel, Handler handler) {
+        mSession = session;
+        mChannel = channel;
+        mHandler = handler;
+        for (int i = 0; i < SEQUENCE_COUNT; i++) {
+            mSegments[i] = new Segment();
+        }
+        channel.addFrameListener(mAckListener);
+    }
+
+    /**
+     * @param window Segments in flight, 1 to {@link #MAX_WINDOW}. Takes effect for new segments.
+     */
+    public synchronized void setWindowSize(int window) {
+        if (window < 1 || window > MAX_WINDOW) {
+            throw new IllegalArgumentException("Invalid window " + window);
+        }
+        mWindow = window;
+    }
+
+    public synchronized int getWindowSize() {
+        return mWindow;
+    }
+
+    /**
+     * Queues {@code data} behind earlier sends. The array must not change until the callback.
+     *
+     * @param callback Completion, may be null.
+     */
+    public void send(byte[] data, Callback callback) {
+        if (data.length == 0) {
+            if (callback != null) callback.onComplete(0);
+            return;
+        }
+        final boolean open;
+        synchronized (this) {
+            mTransfers.add(new Transfer(data, callback));
+            open = mOpen;
+            if (!open) {
+                if (mOpening) return;
+                mOpening = true;
+            }
+        }
+        // Outside the lock: acks reach onAck() with the channel's lock held.
+        if (open) {
+            pump();
+        } else {
+            open();
+        }
+    }
+
+    public synchronized Metrics getMetrics() {
+        return new Metrics(mSegmentsSent, mRetransmissions, mFastRetransmissions, mTimeouts,
+                mSrttMs, mRtoMs);
+    }
+
+    /**
+     * Fails everything queued, e.g. when the connection went away. The next send reopens the
+     * stream.
+     */
+    void cancelAll() {
+        fail(GattOperation.STATUS_CANCELLED);
+    }
+
+    private void open() {
+        final int sequence = mChannel.send(Frame.OP_STREAM_OPEN, new byte[0], 0, 0,
+                new FrameChannel.ResponseCallback() {
+                    @Override
+                    public void onResponse(Frame response, long receivedAtNanos) {
+                        if (response.getOpcode() != Frame.OP_ACK) {
+                            fail(GattOperation.STATUS_REJECTED);
+                            return;
+                        }
+                        synchronized (ReliableStream.this) {
+                            mOpening = false;
+                            mOpen = true;
+                            mBase = 0;
+                            mNext = 0;
+                            mDuplicateAcks = 0;
+                        }
+                        pump();
+                    }
+
+                    @Override
+                    public void onFailure(int status) {
+                        fail(status);
+                    }
+                }, FrameChannel.DEFAULT_RESPONSE_TIMEOUT_MS);
+        if (sequence < 0) fail(GattOperation.STATUS_REJECTED);
+    }
+
+    /**
+     * Sends new segments while the window has room.
+     */
+    private synchronized void pump() {
+        if (!mOpen) return;
+        final BluetoothGattCharacteristic characteristic = mSession.getClockCharacteristic();
+        if (characteristic == null) return;
+        final int segmentSize = Math.max(1, Math.min(Frame.MAX_PAYLOAD,
+                mSession.getMaxPacketSize() - Frame.OVERHEAD));
+        while (inFlightLocked() < mWindow && !mTransfers.isEmpty()) {
+            final Transfer transfer = firstUnsentLocked();
+            if (transfer == null) break;
+            final int length = Math.min(segmentSize, transfer.mData.length - transfer.mOffset);
+            final Segment segment = mSegments[mNext];
+            final ByteBuffer frame = ByteBuffer.allocate(Frame.OVERHEAD + length);
+            FrameEncoder.encode(frame, Frame.OP_DATA, mNext, transfer.mData, transfer.mOffset,
+                    length);
+            transfer.mOffset += length;
+            segment.mFrame = frame.array();
+            segment.mTransfer = transfer;
+            segment.mLast = transfer.mOffset == transfer.mData.length;
+            segment.mRetransmitted = false;
+            segment.mFastRetransmitted = false;
+            segment.mSacked = false;
+            mNext = (mNext + 1) % SEQUENCE_COUNT;
+            mSegmentsSent++;
+            transmitLocked(characteristic, segment);
+        }
+    }
+
+    private Transfer firstUnsentLocked() {
+        for (Transfer transfer : mTransfers) {
+            if (transfer.mOffset < transfer.mData.length) return transfer;
+        }
+        return null;
+    }
+
+    private void transmitLocked(BluetoothGattCharacteristic characteristic, Segment segment) {
+        segment.mSentAtNanos = SystemClock.elapsedRealtimeNanos();
+        mSession.streamCharacteristic(characteristic, segment.mFrame,
+                GattOperation.PRIORITY_BULK, null);
+        if (!mTimerArmed) {
+            mTimerArmed = true;
+            mHandler.postDelayed(mRetransmitRunnable, mRtoMs);
+        }
+    }
+
+    private int inFlightLocked() {
+        return (mNext - mBase + SEQUENCE_COUNT) % SEQUENCE_COUNT;
+    }
+
+    private void onAck(int nextExpected, int sackBits, long receivedAtNanos) {
+        final List<Transfer> completed = new ArrayList<Transfer>();
+        synchronized (this) {
+            if (!mOpen) return;
+            final int inFlight = inFlightLocked();
+            final int acked = (nextExpected - mBase + SEQUENCE_COUNT) % SEQUENCE_COUNT;
+            if (acked > inFlight) return; // Stale ack from before the stream was reopened.
+
+            if (acked > 0) {
+                final Segment newest = mSegments[(nextExpected - 1 + SEQUENCE_COUNT)
+                        % SEQUENCE_COUNT];
+                // Karn: retransmitted segments give ambiguous samples.
+                if (!newest.mRetransmitted) {
+                    updateRttLocked((receivedAtNanos - newest.mSentAtNanos) / 1e6);
+                }
+                for (int i = 0; i < acked; i++) {
+                    final Segment segment = mSegments[(mBase + i) % SEQUENCE_COUNT];
+                    if (segment.mLast) {
+                        completed.add(segment.mTransfer);
+                        mTransfers.remove(segment.mTransfer);
+                    }
+                    segment.mFrame = null;
+                    segment.mTransfer = null;
+                }
+                mBase = nextExpected;
+                mDuplicateAcks = 0;
+                mTimeoutsInARow = 0;
+                restartTimerLocked();
+            } else if (inFlight > 0) {
+                mDuplicateAcks++;
+            }
+
+            int highestSacked = -1;
+            final int remaining = inFlightLocked();
+            for (int bit = 0; bit < MAX_WINDOW && bit + 1 < remaining; bit++) {
+                if ((sackBits & (1 << bit)) != 0) {
+                    mSegments[(mBase + 1 + bit) % SEQUENCE_COUNT].mSacked = true;
+                    highestSacked = bit + 1;
+                }
+            }
+            if (remaining > 0 && (mDuplicateAcks >= FAST_RETRANSMIT_THRESHOLD
+                    || highestSacked >= FAST_RETRANSMIT_THRESHOLD)) {
+                fastRetransmitLocked(Math.max(highestSacked, 1));
+            }
+        }
+        for (Transfer transfer : completed) {
+            completion(transfer, 0).run();
+        }
+        pump();
+    }
+
+    /**
+     * Resends the holes among the first {@code limit} in-flight segments.
+     */
+    private void fastRetransmitLocked(int limit) {
+        final BluetoothGattCharacteristic characteristic = mSession.getClockCharacteristic();
+        if (characteristic == null) return;
+        for (int i = 0; i < limit; i++) {
+            final Segment segment = mSegments[(mBase + i) % SEQUENCE_COUNT];
+            if (segment.mSacked || segment.mFastRetransmitted) continue;
+            segment.mFastRetransmitted = true;
+            segment.mRetransmitted = true;
+            mFastRetransmissions++;
+            mRetransmissions++;
+            transmitLocked(characteristic, segment);
+        }
+    }
+
+    private void onRetransmitTimeout() {
+        synchronized (this) {
+            mTimerArmed = false;
+            if (!mOpen || inFlightLocked() == 0) return;
+            mTimeouts++;
+            if (++mTimeoutsInARow <= MAX_TIMEOUTS) {
+                mRtoMs = Math.min(mRtoMs * 2, MAX_RTO_MS);
+                final BluetoothGattCharacteristic characteristic =
+                        mSession.getClockCharacteristic();
+                if (characteristic == null) return;
+                Log.i(TAG, "Retransmission timeout, RTO now " + mRtoMs + " ms");
+                final int inFlight = inFlightLocked();
+                for (int i = 0; i < inFlight; i++) {
+                    final Segment segment = mSegments[(mBase + i) % SEQUENCE_COUNT];
+                    if (segment.mSacked) continue;
+                    segment.mRetransmitted = true;
+                    segment.mFastRetransmitted = false;
+                    mRetransmissions++;
+                    transmitLocked(characteristic, segment);
+                }
+                return;
+            }
+        }
+        Log.w(TAG, "No acks after " + MAX_TIMEOUTS + " timeouts");
+        fail(GattOperation.STATUS_TIMEOUT);
+    }
+
+    private void restartTimerLocked() {
+        mHandler.removeCallbacks(mRetransmitRunnable);
+        mTimerArmed = inFlightLocked() > 0;
+        if (mTimerArmed) {
+            mHandler.postDelayed(mRetransmitRunnable, mRtoMs);
+        }
+    }
+
+    private void updateRttLocked(double rttMs) {
+        if (mSrttMs == 0) {
+            mSrttMs = rttMs;
+            mRttVarMs = rttMs / 2;
+        } else {
+            mRttVarMs = 0.75 * mRttVarMs + 0.25 * Math.abs(mSrttMs - rttMs);
+            mSrttMs = 0.875 * mSrttMs + 0.125 * rttMs;
+        }
+        mRtoMs = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS,
+                (long) (mSrttMs + Math.max(10, 4 * mRttVarMs))));
+    }
+
+    private void fail(int status) {
+        final List<Transfer> failed;
+        synchronized (this) {
+            failed = new ArrayList<Transfer>(mTransfers);
+            mTransfers.clear();
+            for (Segment segment : mSegments) {
+                segment.mFrame = null;
+                segment.mTransfer = null;
+            }
+            mOpen = false;
+            mOpening = false;
+            mBase = mNext = 0;
+            mTimerArmed = false;
+            mHandler.removeCallbacks(mRetransmitRunnable);
+        }
+        if (!failed.isEmpty()) {
+            Log.w(TAG, "Stream failed: " + status);
+        }
+        for (Transfer transfer : failed) {
+            completion(transfer, status).run();
+        }
+    }
+
+    private static Runnable completion(final Transfer transfer, final int status) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (transfer.mCallback != null) transfer.mCallback.onComplete(status);
+            }
+        };
+    }
+}
@@ -23,13 +23,14 @@ import java.util.HashMap;
  */
 public class SampleGattAttributes {
     private static HashMap<String, String> attributes = new HashMap();
+    public static String HM_10_SERVICE = "0000ffe0-0000-1000-8000-00805f9b34fb";
     public static String HM_10 = "0000ffe1-0000-1000-8000-00805f9b34fb"; // HM-10
     public static String HEART_RATE_MEASUREMENT = "00002a37-0000-1000-8000-00805f9b34fb";
     public static String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
 
     static {
         // Sample Services.
-        attributes.put("0000ffe0-0000-1000-8000-00805f9b34fb", "HM-10 Service"); // HM-10
+        attributes.put(HM_10_SERVICE, "HM-10 Service"); // HM-10
         attributes.put("0000180d-0000-1000-8000-00805f9b34fb", "Heart Rate Service");
         attributes.put("0000180a-0000-1000-8000-00805f9b34fb", "Device Information Service");
         // Sample Characteristics.
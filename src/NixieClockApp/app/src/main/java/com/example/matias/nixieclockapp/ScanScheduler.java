@@ -0,0 +1,311 @@
+package com.example.matias.nixieclockapp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs a {@link ClockScanner} in a duty cycle picked from what the scan has found so far,
+ * instead of one fixed scan that always runs to its end.
+ *
+ * A session starts with {@link #BURST_MS} of {@code SCAN_MODE_LOW_LATENCY}, where nearly every
+ * clock in range shows up, then scans {@code SCAN_MODE_BALANCED} while new devices keep
+ * appearing. Once nothing new turned up for {@link #QUIET_MS} it backs off to short
+ * {@code SCAN_MODE_LOW_POWER} windows, with the pause between them doubling up to
+ * {@link #MAX_PAUSE_MS} and falling back to {@link #MIN_PAUSE_MS} whenever a window finds a new
+ * device. The session ends after {@link #MAX_SESSION_MS}, or right away once the target clock
+ * is seen.
+ *
+ * Android blocks apps that start more than {@link #MAX_STARTS} scans within
+ * {@link #START_WINDOW_MS} without telling them, so windows that would exceed that wait.
+ *
+ * Each session ends with a {@link Report} of its radio time per scan mode. Used from the
+ * handler's thread.
+ */
+public class ScanScheduler {
+    private final static String TAG = ScanScheduler.class.getSimpleName();
+
+    public static final long BURST_MS = 1000;
+    public static final long QUIET_MS = 2000;
+    public static final long WINDOW_MS = 1000;
+    public static final long MIN_PAUSE_MS = 2000;
+    public static final long MAX_PAUSE_MS = 16000;
+    public static final long MAX_SESSION_MS = 60000;
+
+    public static final int MAX_STARTS = 5;
+    public static final long START_WINDOW_MS = 30000;
+
+    public static final int REASON_TARGET_FOUND = 0;
+    public static final int REASON_TIMEOUT = 1;
+    public static final int REASON_STOPPED = 2;
+    public static final int REASON_FAILED = 3;
+
+    private static final int PHASE_IDLE = 0;
+    private static final int PHASE_BURST = 1;
+    private static final int PHASE_BALANCED = 2;
+    private static final int PHASE_WINDOW = 3;
+    private static final int PHASE_PAUSE = 4;
+
+    // Indexed by the ScanSettings.SCAN_MODE_ constants.
+    private static final int MODE_COUNT = 3;
+    private static final int MODE_NONE = -1;
+
+    /**
+     * Receives the results and the end of each session, on the handler's thread.
+     */
+    public interface Listener extends ClockScanner.Listener {
+        void onSessionFinished(Report report);
+    }
+
+    /**
+     * What a session found and what it cost.
+     */
+    public static class Report {
+        public final int reason;
+        public final long sessionMs;
+        // Time the radio scanned, in total and per scan mode.
+        public final long radioOnMs;
+        public final long lowLatencyMs;
+        public final long balancedMs;
+        public final long lowPowerMs;
+        public final int scanStarts;
+        public final int devicesFound;
+        // Time from the start of the session, -1 if it didn't happen.
+        public final long firstDeviceMs;
+        public final long targetFoundMs;
+
+        Report(int reason, long sessionMs, long[] modeMs, int scanStarts, int devicesFound,
+               long firstDeviceMs, long targetFoundMs) {
+            this.reason = reason;
+            this.sessionMs = sessionMs;
+            this.lowLatencyMs = modeMs[ScanSettings.SCAN_MODE_LOW_LATENCY];
+            this.balancedMs = modeMs[ScanSettings.SCAN_MODE_BALANCED];
+            this.lowPowerMs = modeMs[ScanSettings.SCAN_MODE_LOW_POWER];
+            this.radioOnMs = lowLatencyMs + balancedMs + lowPowerMs;
+            this.scanStarts = scanStarts;
+            this.devicesFound = devicesFound;
+            this.firstDeviceMs = firstDeviceMs;
+            this.targetFoundMs = targetFoundMs;
+        }
+
+        @Override
+        public String toString() {
+            return "reason=" + reason + " sessionMs=" + sessionMs + " radioOnMs=" + radioOnMs
+                    + " (lowLatency=" + lowLatencyMs + " balanced=" + balancedMs
+                    + " lowPower=" + lowPowerMs + ") starts=" + scanStarts
+                    + " devices=" + devicesFound + " firstDeviceMs=" + firstDeviceMs
+                    + " targetFoundMs=" + targetFoundMs;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final ClockScanner mScanner;
+
+    private int mPhase = PHASE_IDLE;
+    private String mTarget;
+    private long mSessionStartMs;
+    private long mLastNewDeviceMs;
+    private long mPauseMs;
+    private boolean mFoundInWindow;
+    private final Set<String> mSeen = new HashSet<String>();
+    // Start times of the recent scans, oldest first.
+    private final ArrayDeque<Long> mStarts = new ArrayDeque<Long>();
+
+    private int mWindowMode = MODE_NONE;
+    private long mWindowStartMs;
+    private final long[] mModeMs = new long[MODE_COUNT];
+    private int mScanStarts;
+    private long mFirstDeviceMs;
+    private long mTargetFoundMs;
+
+    private final Runnable mStepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    private final ClockScanner.Listener mScanListener = new ClockScanner.Listener() {
+        @Override
+        public void onDevicesFound(List<ScanResult> results) {
+            if (mPhase == PHASE_IDLE) return;
+            final long nowMs = SystemClock.elapsedRealtime();
+            boolean targetFound = false;
+            for (ScanResult result : results) {
+                final String address = result.getDevice().getAddress();
+                if (mSeen.add(address)) {
+                    mLastNewDeviceMs = nowMs;
+                    mFoundInWindow = true;
+                    if (mFirstDeviceMs < 0) mFirstDeviceMs = nowMs - mSessionStartMs;
+                }
+                if (address.equals(mTarget)) targetFound = true;
+            }
+            mListener.onDevicesFound(results);
+            if (targetFound) {
+                mTargetFoundMs = nowMs - mSessionStartMs;
+                finish(REASON_TARGET_FOUND);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            mListener.onScanFailed(errorCode);
+            finish(REASON_FAILED);
+        }
+    };
+
+    public ScanScheduler(BluetoothAdapter adapter, Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+        mScanner = new ClockScanner(adapter, handler, mScanListener);
+    }
+
+    /**
+     * Starts a session, unless one is running.
+     *
+     * @param targetAddress Clock the session ends at, or null to run until it times out.
+     *
+     * @return false if Bluetooth is off.
+     */
+    public boolean start(String targetAddress) {
+        if (mPhase != PHASE_IDLE) return true;
+        mTarget = targetAddress;
+        mSessionStartMs = SystemClock.elapsedRealtime();
+        mLastNewDeviceMs = mSessionStartMs;
+        mSeen.clear();
+        for (int i = 0; i < MODE_COUNT; i++) {
+            mModeMs[i] = 0;
+        }
+        mScanStarts = 0;
+        mFirstDeviceMs = -1;
+        mTargetFoundMs = -1;
+        mPhase = PHASE_BURST;
+        if (!startWindow(ScanSettings.SCAN_MODE_LOW_LATENCY)) return false;
+        mHandler.postDelayed(mStepRunnable, BURST_MS);
+        return true;
+    }
+
+    /**
+     * Ends the running session, reporting it to the listener.
+     */
+    public void stop() {
+        finish(REASON_STOPPED);
+    }
+
+    public boolean isRunning() {
+        return mPhase != PHASE_IDLE;
+    }
+
+    public ClockScanner.Metrics getScannerMetrics() {
+        return mScanner.getMetrics();
+    }
+
+    private void step() {
+        final long nowMs = SystemClock.elapsedRealtime();
+        if (nowMs - mSessionStartMs >= MAX_SESSION_MS) {
+            finish(REASON_TIMEOUT);
+            return;
+        }
+        switch (mPhase) {
+            case PHASE_BURST:
+                if (!stopWindow()) return;
+                mPhase = PHASE_BALANCED;
+                if (!startWindow(ScanSettings.SCAN_MODE_BALANCED)) return;
+                mHandler.postDelayed(mStepRunnable, mLastNewDeviceMs + QUIET_MS - nowMs);
+                break;
+            case PHASE_BALANCED:
+                if (nowMs - mLastNewDeviceMs < QUIET_MS) {
+                    mHandler.postDelayed(mStepRunnable, mLastNewDeviceMs + QUIET_MS - nowMs);
+                    break;
+                }
+                if (!stopWindow()) return;
+                mPhase = PHASE_PAUSE;
+                mPauseMs = MIN_PAUSE_MS;
+                schedulePause(nowMs);
+                break;
+            case PHASE_PAUSE:
+                final long allowedAtMs = nextStartAllowedMs(nowMs);
+                if (allowedAtMs > nowMs) {
+                    mHandler.postDelayed(mStepRunnable, allowedAtMs - nowMs);
+                    break;
+                }
+                mPhase = PHASE_WINDOW;
+                mFoundInWindow = false;
+                if (!startWindow(ScanSettings.SCAN_MODE_LOW_POWER)) return;
+                mHandler.postDelayed(mStepRunnable, WINDOW_MS);
+                break;
+            case PHASE_WINDOW:
+                if (!stopWindow()) return;
+                mPhase = PHASE_PAUSE;
+                mPauseMs = mFoundInWindow ? MIN_PAUSE_MS : Math.min(mPauseMs * 2, MAX_PAUSE_MS);
+                schedulePause(nowMs);
+                break;
+        }
+    }
+
+    private void schedulePause(long nowMs) {
+        // Don't sleep past the end of the session.
+        final long remainingMs = mSessionStartMs + MAX_SESSION_MS - nowMs;
+        mHandler.postDelayed(mStepRunnable, Math.min(mPauseMs, remainingMs));
+    }
+
+    private boolean startWindow(int scanMode) {
+        mScanner.setScanMode(scanMode);
+        if (!mScanner.start()) {
+            finish(REASON_FAILED);
+            return false;
+        }
+        mWindowMode = scanMode;
+        mWindowStartMs = SystemClock.elapsedRealtime();
+        mStarts.addLast(mWindowStartMs);
+        while (mStarts.size() > MAX_STARTS) {
+            mStarts.removeFirst();
+        }
+        mScanStarts++;
+        return true;
+    }
+
+    /**
+     * Stops the scan of the current window. The results it hasn't delivered yet come in before
+     * this returns and may end the session.
+     *
+     * @return false if the session ended.
+     */
+    private boolean stopWindow() {
+        if (mWindowMode != MODE_NONE) {
+            mModeMs[mWindowMode] += SystemClock.elapsedRealtime() - mWindowStartMs;
+            mWindowMode = MODE_NONE;
+            mScanner.stop();
+        }
+        return mPhase != PHASE_IDLE;
+    }
+
+    /**
+     * @return Earliest time another scan can start without being blocked by the system.
+     */
+    private long nextStartAllowedMs(long nowMs) {
+        if (mStarts.size() < MAX_STARTS) return nowMs;
+        return Math.max(nowMs, mStarts.peekFirst() + START_WINDOW_MS);
+    }
+
+    private void finish(int reason) {
+        if (mPhase == PHASE_IDLE) return;
+        if (!stopWindow()) return;
+        mHandler.removeCallbacks(mStepRunnable);
+        mPhase = PHASE_IDLE;
+        final Report report = new Report(reason,
+                SystemClock.elapsedRealtime() - mSessionStartMs, mModeMs, mScanStarts,
+                mSeen.size(), mFirstDeviceMs, mTargetFoundMs);
+        Log.i(TAG, "Scan session: " + report);
+        mListener.onSessionFinished(report);
+    }
+}
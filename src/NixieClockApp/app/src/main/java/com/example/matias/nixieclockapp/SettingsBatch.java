@@ -0,0 +1,145 @@
+package com.example.matias.nixieclockapp;
+
+import android.util.Log;
+
+import com.example.matias.nixieclockapp.protocol.Frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Collects clock settings and sends them as a single {@code OP_APPLY_SETTINGS} frame, so a whole
+ * configuration costs one write and one acknowledgement instead of a round trip per setting:
+ * <pre>
+ *   session.batch().time(21, 30, 0).brightness(128).mode24h(true).commit(callback);
+ * </pre>
+ * The clock validates every item before applying any, so a batch is applied completely or not
+ * at all. A batch can only be committed once.
+ */
+public class SettingsBatch {
+    private final static String TAG = SettingsBatch.class.getSimpleName();
+
+    /**
+     * Outcome of {@link #commit}. Called on a binder thread or the session's handler thread.
+     */
+    public interface Callback {
+        void onCommitted();
+
+        /**
+         * @param status {@code GattOperation.STATUS_REJECTED} if the clock refused the batch,
+         *               otherwise a {@link FrameChannel} failure.
+         * @param error The clock's {@code Frame.ERROR_} reason, -1 if it didn't answer.
+         * @param item Index of the refused setting, -1 if not known.
+         */
+        void onFailed(int status, int error, int item);
+    }
+
+    private final FrameChannel mChannel;
+    private final ByteBuffer mItems = ByteBuffer.allocate(Frame.MAX_PAYLOAD);
+    private int mCount;
+    private boolean mCommitted;
+
+    SettingsBatch(FrameChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * Sets hour (0-23), minute and second (0-59).
+     */
+    public SettingsBatch time(int hour, int minute, int second) {
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            throw new IllegalArgumentException("Invalid time " + hour + ":" + minute + ":"
+                    + second);
+        }
+        begin(Frame.SETTING_TIME, 3);
+        mItems.put((byte) hour).put((byte) minute).put((byte) second);
+        return this;
+    }
+
+    /**
+     * Sets date and time.
+     *
+     * @param localSeconds Local time in seconds since 1970-01-01 00:00.
+     */
+    public SettingsBatch dateTime(long localSeconds) {
+        if (localSeconds < 0 || localSeconds > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Invalid time " + localSeconds);
+        }
+        begin(Frame.SETTING_DATETIME, 4);
+        mItems.putInt((int) localSeconds);
+        return this;
+    }
+
+    /**
+     * @param level 0 (tubes off) to 255 (full brightness).
+     */
+    public SettingsBatch brightness(int level) {
+        if (level < 0 || level > 255) {
+            throw new IllegalArgumentException("Invalid brightness " + level);
+        }
+        begin(Frame.SETTING_BRIGHTNESS, 1);
+        mItems.put((byte) level);
+        return this;
+    }
+
+    /**
+     * @param enabled true for a 24 hour display, false for 12 hours.
+     */
+    public SettingsBatch mode24h(boolean enabled) {
+        begin(Frame.SETTING_MODE_24H, 1);
+        mItems.put((byte) (enabled ? 1 : 0));
+        return this;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Sends the batch.
+     *
+     * @param callback Outcome, may be null.
+     *
+     * @return true if the batch was queued. If not, {@code callback} isn't called.
+     */
+    public boolean commit(final Callback callback) {
+        if (mCommitted) {
+            throw new IllegalStateException("Batch already committed");
+        }
+        mCommitted = true;
+        if (mChannel == null || mCount == 0) {
+            Log.w(TAG, mChannel == null ? "No connection" : "Empty batch");
+            return false;
+        }
+        return mChannel.send(Frame.OP_APPLY_SETTINGS, mItems.array(), 0, mItems.position(),
+                new FrameChannel.ResponseCallback() {
+                    @Override
+                    public void onResponse(Frame response, long receivedAtNanos) {
+                        if (callback == null) return;
+                        if (response.getOpcode() == Frame.OP_ACK) {
+                            callback.onCommitted();
+                            return;
+                        }
+                        final int length = response.getLength();
+                        callback.onFailed(GattOperation.STATUS_REJECTED,
+                                length > 0 ? response.getPayloadByte(0) : -1,
+                                length > 1 ? response.getPayloadByte(1) : -1);
+                    }
+
+                    @Override
+                    public void onFailure(int status) {
+                        if (callback != null) callback.onFailed(status, -1, -1);
+                    }
+                }, FrameChannel.DEFAULT_RESPONSE_TIMEOUT_MS) >= 0;
+    }
+
+    private void begin(int setting, int length) {
+        if (mCommitted) {
+            throw new IllegalStateException("Batch already committed");
+        }
+        if (mItems.remaining() < 2 + length) {
+            throw new IllegalArgumentException("Batch doesn't fit in one frame");
+        }
+        mItems.put((byte) setting).put((byte) length);
+        mCount++;
+    }
+}
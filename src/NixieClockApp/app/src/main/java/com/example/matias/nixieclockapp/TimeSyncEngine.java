@@ -0,0 +1,284 @@
+package com.example.matias.nixieclockapp;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.matias.nixieclockapp.protocol.Frame;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Sets a clock to the phone's local time, NTP style.
+ *
+ * The round trip to the clock is measured with {@link #SAMPLES} {@code OP_ECHO} frames sent
+ * through the same write path and with the same size as the time frame. The median round trip
+ * rejects samples that hit a retransmission or a busy connection event, and half of it is taken
+ * as the one way latency. The {@code OP_SET_DATETIME} frame is then sent that much ahead of the
+ * next second boundary and carries the time of that boundary, so the clock restarts its seconds
+ * counter at the moment the phone's second ticks.
+ *
+ * The residual error is the asymmetry of the link plus the scheduling error; the engine retries
+ * the scheduling on the next second when the send went out more than
+ * {@link #MAX_SCHEDULING_ERROR_MS} late, and reports the spread of the samples so callers can
+ * tell how far off the result may be. The target is {@link #TARGET_ERROR_MS}.
+ */
+public class TimeSyncEngine {
+    private final static String TAG = TimeSyncEngine.class.getSimpleName();
+
+    public static final int SAMPLES = 7;
+    public static final long TARGET_ERROR_MS = 20;
+    public static final long MAX_SCHEDULING_ERROR_MS = 5;
+    // Time left between scheduling and sending, so the send isn't already late.
+    private static final long MIN_LEAD_MS = 50;
+    private static final int MAX_SCHEDULING_ATTEMPTS = 3;
+    private static final int TIME_PAYLOAD_SIZE = 4;
+
+    /**
+     * Outcome of a sync. Called on a binder thread or the session's handler thread.
+     */
+    public interface Callback {
+        void onSyncComplete(Result result);
+
+        /**
+         * @param status {@code GattOperation.STATUS_REJECTED} if the clock refused the time or
+         *               a sync is already running, otherwise a {@link FrameChannel} failure.
+         */
+        void onSyncFailed(int status);
+    }
+
+    /**
+     * Measurements of a completed sync.
+     */
+    public static class Result {
+        public final double medianRttMs;
+        public final double minRttMs;
+        public final double maxRttMs;
+        // Median absolute deviation of the one way latency estimate.
+        public final double spreadMs;
+        // How late the time frame went out compared to its schedule.
+        public final double schedulingErrorMs;
+        public final long syncedToMs;
+
+        Result(double medianRttMs, double minRttMs, double maxRttMs, double spreadMs,
+               double schedulingErrorMs, long syncedToMs) {
+            this.medianRttMs = medianRttMs;
+            this.minRttMs = minRttMs;
+            this.maxRttMs = maxRttMs;
+            this.spreadMs = spreadMs;
+            this.schedulingErrorMs = schedulingErrorMs;
+            this.syncedToMs = syncedToMs;
+        }
+
+        /**
+         * @return Upper estimate of the residual error of the clock.
+         */
+        public double getEstimatedErrorMs() {
+            return spreadMs + Math.abs(schedulingErrorMs);
+        }
+
+        @Override
+        public String toString() {
+            return "rtt(median/min/max)=" + medianRttMs + "/" + minRttMs + "/" + maxRttMs
+                    + " spread=" + spreadMs + " scheduling=" + schedulingErrorMs
+                    + " estimatedError=" + getEstimatedErrorMs();
+        }
+    }
+
+    private final FrameChannel mChannel;
+    private final Handler mHandler;
+    private final long[] mRttNanos = new long[SAMPLES];
+    private final byte[] mPayload = new byte[TIME_PAYLOAD_SIZE];
+
+    private Callback mCallback;
+    private int mSample;
+    private long mSentAtNanos;
+    private long mOneWayNanos;
+    private double mSpreadMs;
+    private long mTargetWallMs;
+    private int mSchedulingAttempts;
+    private double mSchedulingErrorMs;
+
+    private final FrameChannel.ResponseCallback mEchoCallback =
+            new FrameChannel.ResponseCallback() {
+        @Override
+        public void onResponse(Frame response, long receivedAtNanos) {
+            if (response.getOpcode() != Frame.OP_ECHO_REPLY) {
+                finish(null, GattOperation.STATUS_REJECTED);
+                return;
+            }
+            synchronized (TimeSyncEngine.this) {
+                if (mCallback == null) return;
+                mRttNanos[mSample++] = receivedAtNanos - mSentAtNanos;
+            }
+            mHandler.post(mNextStepRunnable);
+        }
+
+        @Override
+        public void onFailure(int status) {
+            finish(null, status);
+        }
+    };
+
+    private final FrameChannel.ResponseCallback mTimeCallback =
+            new FrameChannel.ResponseCallback() {
+        @Override
+        public void onResponse(Frame response, long receivedAtNanos) {
+            if (response.getOpcode() != Frame.OP_ACK) {
+                finish(null, GattOperation.STATUS_REJECTED);
+                return;
+            }
+            final Result result;
+            synchronized (TimeSyncEngine.this) {
+                result = buildResultLocked();
+            }
+            finish(result, 0);
+        }
+
+        @Override
+        public void onFailure(int status) {
+            finish(null, status);
+        }
+    };
+
+    private final Runnable mNextStepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final boolean measuring;
+            synchronized (TimeSyncEngine.this) {
+                if (mCallback == null) return;
+                measuring = mSample < SAMPLES;
+            }
+            if (measuring) {
+                sendEcho();
+            } else {
+                scheduleTime();
+            }
+        }
+    };
+
+    private final Runnable mSendTimeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendTime();
+        }
+    };
+
+    public TimeSyncEngine(FrameChannel channel, Handler handler) {
+        mChannel = channel;
+        mHandler = handler;
+    }
+
+    /**
+     * Starts a sync. Only one sync runs at a time.
+     */
+    public void sync(Callback callback) {
+        synchronized (this) {
+            if (mCallback != null) {
+                Log.w(TAG, "Sync already running");
+                callback.onSyncFailed(GattOperation.STATUS_REJECTED);
+                return;
+            }
+            mCallback = callback;
+            mSample = 0;
+            mSchedulingAttempts = 0;
+        }
+        mHandler.post(mNextStepRunnable);
+    }
+
+    public synchronized boolean isRunning() {
+        return mCallback != null;
+    }
+
+    private void sendEcho() {
+        // Same payload size as the time frame, so both take as long on the UART.
+        Arrays.fill(mPayload, (byte) 0);
+        synchronized (this) {
+            mSentAtNanos = SystemClock.elapsedRealtimeNanos();
+        }
+        // Control lane, so queued bulk packets don't end up in the measured round trips.
+        if (mChannel.send(Frame.OP_ECHO, mPayload, 0, mPayload.length, mEchoCallback,
+                FrameChannel.DEFAULT_RESPONSE_TIMEOUT_MS, GattOperation.PRIORITY_CONTROL) < 0) {
+            finish(null, GattOperation.STATUS_REJECTED);
+        }
+    }
+
+    private void scheduleTime() {
+        final long delayMs;
+        synchronized (this) {
+            final long[] sorted = mRttNanos.clone();
+            Arrays.sort(sorted);
+            final long median = sorted[SAMPLES / 2];
+            mOneWayNanos = median / 2;
+
+            final long[] deviations = new long[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) {
+                deviations[i] = Math.abs(sorted[i] - median);
+            }
+            Arrays.sort(deviations);
+            mSpreadMs = deviations[SAMPLES / 2] / 2 / 1e6;
+
+            final long oneWayMs = mOneWayNanos / 1000000L;
+            final long nowMs = System.currentTimeMillis();
+            mTargetWallMs = ((nowMs + oneWayMs + MIN_LEAD_MS) / 1000 + 1) * 1000;
+            delayMs = mTargetWallMs - oneWayMs - nowMs;
+            Log.i(TAG, "Median RTT " + median / 1e6 + " ms, sending in " + delayMs + " ms");
+        }
+        mHandler.postDelayed(mSendTimeRunnable, delayMs);
+    }
+
+    private void sendTime() {
+        final long lateMs;
+        synchronized (this) {
+            if (mCallback == null) return;
+            final long sendAtMs = mTargetWallMs - mOneWayNanos / 1000000L;
+            lateMs = System.currentTimeMillis() - sendAtMs;
+            if (Math.abs(lateMs) > MAX_SCHEDULING_ERROR_MS
+                    && ++mSchedulingAttempts < MAX_SCHEDULING_ATTEMPTS) {
+                Log.i(TAG, "Send off by " + lateMs + " ms, retrying on the next second");
+                mHandler.post(mNextStepRunnable);
+                return;
+            }
+            final long localMs = mTargetWallMs + TimeZone.getDefault().getOffset(mTargetWallMs);
+            final long seconds = localMs / 1000;
+            mPayload[0] = (byte) (seconds >>> 24);
+            mPayload[1] = (byte) (seconds >>> 16);
+            mPayload[2] = (byte) (seconds >>> 8);
+            mPayload[3] = (byte) seconds;
+            mSchedulingErrorMs = lateMs;
+        }
+        if (mChannel.send(Frame.OP_SET_DATETIME, mPayload, 0, mPayload.length, mTimeCallback,
+                FrameChannel.DEFAULT_RESPONSE_TIMEOUT_MS, GattOperation.PRIORITY_CONTROL) < 0) {
+            finish(null, GattOperation.STATUS_REJECTED);
+        }
+    }
+
+    private Result buildResultLocked() {
+        final long[] sorted = mRttNanos.clone();
+        Arrays.sort(sorted);
+        return new Result(sorted[SAMPLES / 2] / 1e6, sorted[0] / 1e6, sorted[SAMPLES - 1] / 1e6,
+                mSpreadMs, mSchedulingErrorMs, mTargetWallMs);
+    }
+
+    private void finish(Result result, int status) {
+        final Callback callback;
+        synchronized (this) {
+            callback = mCallback;
+            mCallback = null;
+        }
+        mHandler.removeCallbacks(mSendTimeRunnable);
+        mHandler.removeCallbacks(mNextStepRunnable);
+        if (callback == null) return;
+        if (result != null) {
+            Log.i(TAG, "Clock synced: " + result);
+            if (result.getEstimatedErrorMs() > TARGET_ERROR_MS) {
+                Log.w(TAG, "Estimated error above " + TARGET_ERROR_MS + " ms");
+            }
+            callback.onSyncComplete(result);
+        } else {
+            Log.w(TAG, "Sync failed: " + status);
+            callback.onSyncFailed(status);
+        }
+    }
+}
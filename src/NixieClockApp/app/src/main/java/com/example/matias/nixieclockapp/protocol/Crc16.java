@@ -0,0 +1,49 @@
+package com.example.matias.nixieclockapp.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF, no reflection, no final XOR).
+ * The firmware computes it bit by bit; a lookup table is used here.
+ */
+public class Crc16 {
+    public static final int INITIAL = 0xFFFF;
+
+    private static final int POLYNOMIAL = 0x1021;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+            }
+            TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private Crc16() {
+    }
+
+    public static int update(int crc, int b) {
+        return ((crc << 8) ^ TABLE[((crc >>> 8) ^ b) & 0xFF]) & 0xFFFF;
+    }
+
+    public static int update(int crc, byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            crc = update(crc, data[i]);
+        }
+        return crc;
+    }
+
+    /**
+     * Updates {@code crc} with the bytes from {@code offset} to {@code offset + length} of
+     * {@code buffer}, without moving its position.
+     */
+    public static int update(int crc, ByteBuffer buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            crc = update(crc, buffer.get(i));
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.matias.nixieclockapp.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact encoding of a sequence of six-digit tube frames, for animations and counters, which
+ * mostly change one or two tubes per frame. Every frame is coded against the previous one (the
+ * first against all zeros) with one of:
+ * <pre>
+ *   00mmmmmm  d d ...   DELTA: the tubes set in mask m (bit 0 the leftmost) change to the
+ *                       following digits, two per byte, high nibble first
+ *   10nnnnnn            HOLD: the previous frame, n + 1 times
+ *   11000000  bb bb bb  FULL: all six digits as BCD
+ *   11111111            END
+ * </pre>
+ * A frame changing one tube costs 2 bytes and a run of up to 64 identical frames 1 byte, against
+ * 3 bytes per frame for plain BCD. Digits are 0-9 or 0xF (blank), like {@code OP_DISPLAY}.
+ *
+ * The firmware's {@code AnimationStep()} decodes the same format and has to be kept in sync.
+ */
+public class DigitSequenceCodec {
+    public static final int DIGITS = 6;
+
+    static final int OP_DELTA = 0x00;
+    static final int OP_HOLD = 0x80;
+    static final int OP_FULL = 0xC0;
+    static final int OP_END = 0xFF;
+    static final int MAX_HOLD = 64;
+
+    private DigitSequenceCodec() {
+    }
+
+    /**
+     * @param frames Frames of {@link #DIGITS} digits each.
+     *
+     * @return The encoded sequence, END included.
+     */
+    public static byte[] encode(List<int[]> frames) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] previous = new int[DIGITS];
+        int hold = 0;
+        for (int[] frame : frames) {
+            check(frame);
+            int mask = 0;
+            int changed = 0;
+            for (int i = 0; i < DIGITS; i++) {
+                if (frame[i] != previous[i]) {
+                    mask |= 1 << i;
+                    changed++;
+                }
+            }
+            if (mask == 0) {
+                if (++hold == MAX_HOLD) {
+                    out.write(OP_HOLD | (hold - 1));
+                    hold = 0;
+                }
+                continue;
+            }
+            if (hold > 0) {
+                out.write(OP_HOLD | (hold - 1));
+                hold = 0;
+            }
+            if (changed >= DIGITS - 1) {
+                // A delta would be as long as the full frame.
+                out.write(OP_FULL);
+                for (int i = 0; i < DIGITS; i += 2) {
+                    out.write(frame[i] << 4 | frame[i + 1]);
+                }
+            } else {
+                out.write(OP_DELTA | mask);
+                int pending = -1;
+                for (int i = 0; i < DIGITS; i++) {
+                    if ((mask & (1 << i)) == 0) continue;
+                    if (pending < 0) {
+                        pending = frame[i] << 4;
+                    } else {
+                        out.write(pending | frame[i]);
+                        pending = -1;
+                    }
+                }
+                if (pending >= 0) out.write(pending);
+            }
+            previous = frame;
+        }
+        if (hold > 0) {
+            out.write(OP_HOLD | (hold - 1));
+        }
+        out.write(OP_END);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return The frames of an encoded sequence.
+     *
+     * @throws IllegalArgumentException If the data is truncated or malformed.
+     */
+    public static List<int[]> decode(byte[] data, int offset, int length) {
+        final List<int[]> frames = new ArrayList<int[]>();
+        final int end = offset + length;
+        int[] current = new int[DIGITS];
+        int i = offset;
+        while (true) {
+            if (i >= end) throw new IllegalArgumentException("Missing END");
+            final int op = data[i++] & 0xFF;
+            if (op == OP_END) {
+                return frames;
+            } else if (op == OP_FULL) {
+                if (i + DIGITS / 2 > end) throw new IllegalArgumentException("Truncated FULL");
+                current = new int[DIGITS];
+                for (int d = 0; d < DIGITS; d += 2) {
+                    current[d] = (data[i] & 0xF0) >> 4;
+                    current[d + 1] = data[i] & 0x0F;
+                    i++;
+                }
+                frames.add(current);
+            } else if ((op & 0xC0) == OP_HOLD) {
+                for (int n = (op & 0x3F) + 1; n > 0; n--) {
+                    frames.add(current.clone());
+                }
+            } else if ((op & 0xC0) == OP_DELTA) {
+                final int mask = op & 0x3F;
+                if (mask == 0) throw new IllegalArgumentException("Empty DELTA");
+                current = current.clone();
+                boolean high = true;
+                for (int d = 0; d < DIGITS; d++) {
+                    if ((mask & (1 << d)) == 0) continue;
+                    if (i >= end) throw new IllegalArgumentException("Truncated DELTA");
+                    if (high) {
+                        current[d] = (data[i] & 0xF0) >> 4;
+                    } else {
+                        current[d] = data[i++] & 0x0F;
+                    }
+                    high = !high;
+                }
+                if (!high) i++;
+                frames.add(current);
+            } else {
+                throw new IllegalArgumentException("Unknown op 0x" + Integer.toHexString(op));
+            }
+        }
+    }
+
+    private static void check(int[] frame) {
+        if (frame.length != DIGITS) {
+            throw new IllegalArgumentException("Expected " + DIGITS + " digits");
+        }
+        for (int digit : frame) {
+            if ((digit < 0 || digit > 9) && digit != 0xF) {
+                throw new IllegalArgumentException("Invalid digit " + digit);
+            }
+        }
+    }
+}
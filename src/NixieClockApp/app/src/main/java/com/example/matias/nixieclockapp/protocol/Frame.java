@@ -0,0 +1,161 @@
+package com.example.matias.nixieclockapp.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary command frame exchanged with the clock firmware:
+ * <pre>
+ *   +------+---------+--------+----------+--------+-------------+----------+
+ *   | 0xA5 | version | opcode | sequence | length | payload ... | CRC16 BE |
+ *   +------+---------+--------+----------+--------+-------------+----------+
+ *      1        1         1        1         1      0..MAX_PAYLOAD    2
+ * </pre>
+ * The CRC ({@link Crc16}) covers version through payload. 0xA5 never appears in the legacy
+ * {@code "HH,MM"} ASCII frame, which lets the firmware accept both.
+ *
+ * Instances are mutable holders filled by the decoders, so decoding doesn't allocate.
+ */
+public class Frame {
+    public static final int SOF = 0xA5;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 5;
+    public static final int CRC_SIZE = 2;
+    public static final int OVERHEAD = HEADER_SIZE + CRC_SIZE;
+    // Bounded by the firmware's receive buffer; a full frame also fits the Arduino's 64 byte
+    // serial buffer.
+    public static final int MAX_PAYLOAD = 32;
+    public static final int MAX_FRAME_SIZE = OVERHEAD + MAX_PAYLOAD;
+
+    // Responses from the clock.
+    public static final int OP_ACK = 0x01;
+    public static final int OP_NACK = 0x02;
+    public static final int OP_ECHO_REPLY = 0x04;
+    // Answers OP_GET_SETTINGS, with the current settings as OP_APPLY_SETTINGS items.
+    public static final int OP_SETTINGS = 0x05;
+    // Reliable stream ack: the sequence is the next OP_DATA segment expected, the payload byte a
+    // bitmap of the following segments already received (bit 0: expected + 1).
+    public static final int OP_DATA_ACK = 0x06;
+    // Answers OP_GET_CAPABILITIES: variant, flags (CAP_), max payload, stream window, bulk
+    // max size (2 bytes big endian) and a bitmap of the commands handled from
+    // CAPABILITY_OPCODE_BASE on (4 bytes big endian, bit 0 the base opcode).
+    public static final int OP_CAPABILITIES = 0x07;
+
+    // Commands to the clock.
+    // Answered right away with OP_ECHO_REPLY and the same payload, to measure round trips.
+    public static final int OP_ECHO = 0x03;
+    public static final int OP_SET_TIME = 0x10;
+    // Local time as seconds since 1970-01-01 00:00, 4 bytes big endian. Applied on arrival, with
+    // the seconds counter restarted so the next second ticks exactly 1 s later.
+    public static final int OP_SET_DATETIME = 0x11;
+    // Several settings applied together, all or none: a sequence of (setting, length, value)
+    // items. Answered with a single ACK, or a NACK carrying the reason and the index of the
+    // offending item.
+    public static final int OP_APPLY_SETTINGS = 0x12;
+    // No payload, answered with OP_SETTINGS.
+    public static final int OP_GET_SETTINGS = 0x13;
+    // Restarts the reliable stream at segment 0, answered with OP_ACK.
+    public static final int OP_STREAM_OPEN = 0x14;
+    // Starts or resumes a bulk transfer: id, size and CRC16 of the whole payload, 2 bytes big
+    // endian each. Answered with an ACK carrying the bytes of that payload already committed.
+    public static final int OP_BULK_BEGIN = 0x15;
+    // Closes a chunk sent over the reliable stream: its end offset and CRC16, 2 bytes each.
+    // ACK once stored; NACK if it doesn't match, the chunk is then dropped.
+    public static final int OP_BULK_COMMIT = 0x16;
+    // Plays the completed bulk payload as a DigitSequenceCodec sequence: frame interval in ms
+    // (2 bytes big endian) and flags (FLAG_LOOP). An empty payload stops it.
+    public static final int OP_PLAY_SEQUENCE = 0x17;
+    public static final int FLAG_LOOP = 0x01;
+    // No payload, answered with OP_CAPABILITIES. Firmware from before it NACKs it, the legacy
+    // ASCII-only firmware doesn't answer at all.
+    public static final int OP_GET_CAPABILITIES = 0x18;
+    // Reliable stream segment; the sequence is the segment's own, not a command sequence.
+    public static final int OP_DATA = 0x20;
+    // Six digits for the tubes, two BCD digits per byte, leftmost tube in the high nibble of
+    // the first byte; 0xF blanks a tube. Not answered. Shown until a second after the last one,
+    // an empty payload gives the tubes back to the clock right away.
+    public static final int OP_DISPLAY = 0x21;
+
+    // OP_APPLY_SETTINGS items.
+    // Hour, minute, second.
+    public static final int SETTING_TIME = 0x01;
+    // Same value as OP_SET_DATETIME.
+    public static final int SETTING_DATETIME = 0x02;
+    // Tube on time, 0 (off) to 255 (full).
+    public static final int SETTING_BRIGHTNESS = 0x03;
+    // 1 for 24 hour display, 0 for 12 hour display.
+    public static final int SETTING_MODE_24H = 0x04;
+
+    // OP_CAPABILITIES.
+    public static final int CAPABILITIES_SIZE = 10;
+    public static final int CAPABILITY_OPCODE_BASE = 0x10;
+    // The clock keeps time in a battery backed RTC across power cuts.
+    public static final int CAP_RTC = 0x01;
+    // Firmware variants.
+    public static final int VARIANT_RTC_BT = 0x01;
+
+    // Bulk transfers, bounded by the firmware's chunk buffer and EEPROM.
+    public static final int BULK_CHUNK_SIZE = 64;
+    public static final int BULK_MAX_SIZE = 512;
+
+    // NACK reasons, first payload byte.
+    public static final int ERROR_UNKNOWN_OPCODE = 0x01;
+    public static final int ERROR_BAD_LENGTH = 0x02;
+    public static final int ERROR_BAD_VALUE = 0x03;
+
+    private int mVersion;
+    private int mOpcode;
+    private int mSequence;
+    private int mLength;
+    private final byte[] mPayload = new byte[MAX_PAYLOAD];
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getOpcode() {
+        return mOpcode;
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return Payload byte {@code index} as an unsigned value.
+     */
+    public int getPayloadByte(int index) {
+        if (index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        return mPayload[index] & 0xFF;
+    }
+
+    /**
+     * Copies the payload to {@code out}.
+     */
+    public void getPayload(ByteBuffer out) {
+        out.put(mPayload, 0, mLength);
+    }
+
+    void setHeader(int version, int opcode, int sequence, int length) {
+        mVersion = version;
+        mOpcode = opcode;
+        mSequence = sequence;
+        mLength = length;
+    }
+
+    byte[] payloadArray() {
+        return mPayload;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{v" + mVersion + " op=0x" + Integer.toHexString(mOpcode)
+                + " seq=" + mSequence + " len=" + mLength + "}";
+    }
+}
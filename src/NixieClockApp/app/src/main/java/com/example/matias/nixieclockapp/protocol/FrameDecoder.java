@@ -0,0 +1,80 @@
+package com.example.matias.nixieclockapp.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Extracts {@link Frame}s from a {@code ByteBuffer} of received bytes.
+ *
+ * Bytes before a start of frame marker are skipped. A frame with an impossible length or a bad
+ * CRC is dropped by skipping its marker, so the decoder resynchronizes on the next one. An
+ * incomplete frame is left in the buffer (position on its marker) for the caller to
+ * {@code compact()} and complete with the next packet.
+ */
+public class FrameDecoder {
+    private long mFrameCount;
+    private long mCrcErrorCount;
+    private long mLengthErrorCount;
+    private long mSkippedBytes;
+
+    /**
+     * Decodes the next frame of {@code in} into {@code frame}.
+     *
+     * @return true if a frame was decoded; {@code in} is then positioned right after it.
+     *         false if {@code in} holds no complete frame.
+     */
+    public boolean decode(ByteBuffer in, Frame frame) {
+        while (true) {
+            while (in.hasRemaining() && (in.get(in.position()) & 0xFF) != Frame.SOF) {
+                in.position(in.position() + 1);
+                mSkippedBytes++;
+            }
+            final int start = in.position();
+            if (in.remaining() < Frame.HEADER_SIZE) return false;
+
+            final int length = in.get(start + 4) & 0xFF;
+            if (length > Frame.MAX_PAYLOAD) {
+                mLengthErrorCount++;
+                skipMarker(in);
+                continue;
+            }
+            if (in.remaining() < Frame.OVERHEAD + length) return false;
+
+            final int crcOffset = start + Frame.HEADER_SIZE + length;
+            final int crc = ((in.get(crcOffset) & 0xFF) << 8) | (in.get(crcOffset + 1) & 0xFF);
+            if (Crc16.update(Crc16.INITIAL, in, start + 1, Frame.HEADER_SIZE - 1 + length) != crc) {
+                mCrcErrorCount++;
+                skipMarker(in);
+                continue;
+            }
+
+            frame.setHeader(in.get(start + 1) & 0xFF, in.get(start + 2) & 0xFF,
+                    in.get(start + 3) & 0xFF, length);
+            in.position(start + Frame.HEADER_SIZE);
+            in.get(frame.payloadArray(), 0, length);
+            in.position(crcOffset + Frame.CRC_SIZE);
+            mFrameCount++;
+            return true;
+        }
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getCrcErrorCount() {
+        return mCrcErrorCount;
+    }
+
+    public long getLengthErrorCount() {
+        return mLengthErrorCount;
+    }
+
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    private void skipMarker(ByteBuffer in) {
+        in.position(in.position() + 1);
+        mSkippedBytes++;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.matias.nixieclockapp.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes {@link Frame}s into a caller supplied {@code ByteBuffer}, at its position. Nothing is
+ * allocated, so a single buffer can be reused for every command.
+ */
+public class FrameEncoder {
+    private FrameEncoder() {
+    }
+
+    /**
+     * Encodes a frame carrying {@code length} bytes of {@code payload} starting at
+     * {@code offset}.
+     *
+     * @return The size of the frame; {@code out}'s position is moved past it.
+     */
+    public static int encode(ByteBuffer out, int opcode, int sequence, byte[] payload,
+                             int offset, int length) {
+        final int start = begin(out, opcode, sequence, length);
+        out.put(payload, offset, length);
+        return end(out, start);
+    }
+
+    /**
+     * Encodes a frame carrying the remaining bytes of {@code payload}, which are consumed.
+     *
+     * @return The size of the frame; {@code out}'s position is moved past it.
+     */
+    public static int encode(ByteBuffer out, int opcode, int sequence, ByteBuffer payload) {
+        final int start = begin(out, opcode, sequence, payload.remaining());
+        out.put(payload);
+        return end(out, start);
+    }
+
+    /**
+     * Encodes a frame without payload.
+     */
+    public static int encode(ByteBuffer out, int opcode, int sequence) {
+        return end(out, begin(out, opcode, sequence, 0));
+    }
+
+    /**
+     * Encodes {@link Frame#OP_SET_TIME}: hour (0-23), minute and second (0-59), one byte each.
+     */
+    public static int encodeSetTime(ByteBuffer out, int sequence, int hour, int minute,
+                                    int second) {
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            throw new IllegalArgumentException("Invalid time " + hour + ":" + minute + ":"
+                    + second);
+        }
+        final int start = begin(out, Frame.OP_SET_TIME, sequence, 3);
+        out.put((byte) hour);
+        out.put((byte) minute);
+        out.put((byte) second);
+        return end(out, start);
+    }
+
+    /**
+     * Writes the header and checks that the whole frame fits.
+     *
+     * @return Position of the start of frame byte.
+     */
+    static int begin(ByteBuffer out, int opcode, int sequence, int length) {
+        if (length < 0 || length > Frame.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload of " + length + " bytes, max "
+                    + Frame.MAX_PAYLOAD);
+        }
+        if (out.remaining() < Frame.OVERHEAD + length) {
+            throw new IllegalArgumentException("Frame of " + (Frame.OVERHEAD + length)
+                    + " bytes doesn't fit in " + out.remaining());
+        }
+        final int start = out.position();
+        out.put((byte) Frame.SOF);
+        out.put((byte) Frame.VERSION);
+        out.put((byte) opcode);
+        out.put((byte) sequence);
+        out.put((byte) length);
+        return start;
+    }
+
+    /**
+     * Appends the CRC of everything after the start of frame byte.
+     *
+     * @return The size of the frame.
+     */
+    static int end(ByteBuffer out, int start) {
+        final int crc = Crc16.update(Crc16.INITIAL, out, start + 1, out.position() - start - 1);
+        out.put((byte) (crc >>> 8));
+        out.put((byte) crc);
+        return out.position() - start;
+    }
+}
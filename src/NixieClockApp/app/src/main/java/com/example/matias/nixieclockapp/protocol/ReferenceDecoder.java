@@ -0,0 +1,118 @@
+package com.example.matias.nixieclockapp.protocol;
+
+/**
+ * Byte at a time {@link Frame} parser that mirrors {@code ParseFrameByte()} in
+ * NixieClock_RTC_BT.ino state for state, so frames produced by {@link FrameEncoder} can be
+ * checked against the firmware's behavior on the JVM. Keep the two in sync.
+ *
+ * Unlike {@link FrameDecoder} it never looks back: after an error it waits for the next start
+ * of frame byte, exactly like the firmware. Frames of another protocol version are dropped.
+ */
+public class ReferenceDecoder {
+    public static final int RESULT_NONE = 0;
+    public static final int RESULT_FRAME = 1;
+    public static final int RESULT_ERROR = 2;
+
+    static final int STATE_WAIT_SOF = 0;
+    static final int STATE_VERSION = 1;
+    static final int STATE_OPCODE = 2;
+    static final int STATE_SEQUENCE = 3;
+    static final int STATE_LENGTH = 4;
+    static final int STATE_PAYLOAD = 5;
+    static final int STATE_CRC_HIGH = 6;
+    static final int STATE_CRC_LOW = 7;
+
+    private final Frame mFrame = new Frame();
+    private int mState = STATE_WAIT_SOF;
+    private int mOpcode;
+    private int mSequence;
+    private int mLength;
+    private int mIndex;
+    private int mCrc;
+    private int mReceivedCrc;
+
+    /**
+     * Feeds one received byte.
+     *
+     * @return {@link #RESULT_FRAME} when the byte completed a valid frame, available from
+     *         {@link #getFrame()} until the next call; {@link #RESULT_ERROR} when it made the
+     *         frame in progress invalid; {@link #RESULT_NONE} otherwise.
+     */
+    public int feed(int b) {
+        b &= 0xFF;
+        switch (mState) {
+            case STATE_WAIT_SOF:
+                if (b == Frame.SOF) {
+                    mCrc = Crc16.INITIAL;
+                    mState = STATE_VERSION;
+                }
+                return RESULT_NONE;
+            case STATE_VERSION:
+                if (b != Frame.VERSION) {
+                    mState = STATE_WAIT_SOF;
+                    return RESULT_ERROR;
+                }
+                mCrc = Crc16.update(mCrc, b);
+                mState = STATE_OPCODE;
+                return RESULT_NONE;
+            case STATE_OPCODE:
+                mOpcode = b;
+                mCrc = Crc16.update(mCrc, b);
+                mState = STATE_SEQUENCE;
+                return RESULT_NONE;
+            case STATE_SEQUENCE:
+                mSequence = b;
+                mCrc = Crc16.update(mCrc, b);
+                mState = STATE_LENGTH;
+                return RESULT_NONE;
+            case STATE_LENGTH:
+                if (b > Frame.MAX_PAYLOAD) {
+                    mState = STATE_WAIT_SOF;
+                    return RESULT_ERROR;
+                }
+                mLength = b;
+                mIndex = 0;
+                mCrc = Crc16.update(mCrc, b);
+                mState = mLength > 0 ? STATE_PAYLOAD : STATE_CRC_HIGH;
+                return RESULT_NONE;
+            case STATE_PAYLOAD:
+                mFrame.payloadArray()[mIndex++] = (byte) b;
+                mCrc = Crc16.update(mCrc, b);
+                if (mIndex == mLength) {
+                    mState = STATE_CRC_HIGH;
+                }
+                return RESULT_NONE;
+            case STATE_CRC_HIGH:
+                mReceivedCrc = b << 8;
+                mState = STATE_CRC_LOW;
+                return RESULT_NONE;
+            case STATE_CRC_LOW:
+                mReceivedCrc |= b;
+                mState = STATE_WAIT_SOF;
+                if (mReceivedCrc != mCrc) {
+                    return RESULT_ERROR;
+                }
+                mFrame.setHeader(Frame.VERSION, mOpcode, mSequence, mLength);
+                return RESULT_FRAME;
+            default:
+                mState = STATE_WAIT_SOF;
+                return RESULT_ERROR;
+        }
+    }
+
+    /**
+     * @return true while a frame is partially received. The firmware routes bytes to the legacy
+     *         ASCII parser only when this is false.
+     */
+    public boolean isBusy() {
+        return mState != STATE_WAIT_SOF;
+    }
+
+    public Frame getFrame() {
+        return mFrame;
+    }
+
+    public void reset() {
+        mState = STATE_WAIT_SOF;
+    }
+}
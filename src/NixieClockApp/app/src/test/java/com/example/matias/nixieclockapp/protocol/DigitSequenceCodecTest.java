@@ -0,0 +1,127 @@
+package com.example.matias.nixieclockapp.protocol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DigitSequenceCodecTest {
+    private static final int BLANK = 0xF;
+
+    @Test
+    public void emptySequenceIsJustEnd() {
+        final byte[] encoded = DigitSequenceCodec.encode(new ArrayList<int[]>());
+        assertArrayEquals(new byte[]{(byte) DigitSequenceCodec.OP_END}, encoded);
+        assertEquals(0, decode(encoded).size());
+    }
+
+    @Test
+    public void singleTubeChangeIsADelta() {
+        final List<int[]> frames = frames(new int[]{0, 0, 0, 0, 0, 7});
+        final byte[] encoded = DigitSequenceCodec.encode(frames);
+        assertArrayEquals(new byte[]{DigitSequenceCodec.OP_DELTA | 1 << 5, 0x70,
+                (byte) DigitSequenceCodec.OP_END}, encoded);
+        assertFramesEqual(frames, decode(encoded));
+    }
+
+    @Test
+    public void twoTubeChangePacksDigitsInOneByte() {
+        final List<int[]> frames = frames(new int[]{1, 0, 0, 0, 0, BLANK});
+        final byte[] encoded = DigitSequenceCodec.encode(frames);
+        assertArrayEquals(new byte[]{DigitSequenceCodec.OP_DELTA | 1 | 1 << 5, 0x1F,
+                (byte) DigitSequenceCodec.OP_END}, encoded);
+        assertFramesEqual(frames, decode(encoded));
+    }
+
+    @Test
+    public void mostlyChangedFrameIsFull() {
+        final List<int[]> frames = frames(new int[]{1, 2, 3, 4, 5, 6});
+        final byte[] encoded = DigitSequenceCodec.encode(frames);
+        assertArrayEquals(new byte[]{(byte) DigitSequenceCodec.OP_FULL, 0x12, 0x34, 0x56,
+                (byte) DigitSequenceCodec.OP_END}, encoded);
+        assertFramesEqual(frames, decode(encoded));
+    }
+
+    @Test
+    public void repeatedFramesAreHeld() {
+        final int[] frame = {1, 2, 3, 4, 5, 6};
+        final List<int[]> frames = new ArrayList<int[]>();
+        for (int i = 0; i < 4; i++) {
+            frames.add(frame);
+        }
+        final byte[] encoded = DigitSequenceCodec.encode(frames);
+        assertArrayEquals(new byte[]{(byte) DigitSequenceCodec.OP_FULL, 0x12, 0x34, 0x56,
+                (byte) (DigitSequenceCodec.OP_HOLD | 2), (byte) DigitSequenceCodec.OP_END},
+                encoded);
+        assertFramesEqual(frames, decode(encoded));
+    }
+
+    @Test
+    public void longHoldIsSplitInRuns() {
+        final List<int[]> frames = new ArrayList<int[]>();
+        for (int i = 0; i < DigitSequenceCodec.MAX_HOLD * 2 + 3; i++) {
+            frames.add(new int[DigitSequenceCodec.DIGITS]);
+        }
+        final byte[] encoded = DigitSequenceCodec.encode(frames);
+        assertArrayEquals(new byte[]{(byte) (DigitSequenceCodec.OP_HOLD | 63),
+                (byte) (DigitSequenceCodec.OP_HOLD | 63), (byte) (DigitSequenceCodec.OP_HOLD | 2),
+                (byte) DigitSequenceCodec.OP_END}, encoded);
+        assertFramesEqual(frames, decode(encoded));
+    }
+
+    @Test
+    public void randomSequencesRoundTrip() {
+        final Random random = new Random(1);
+        for (int n = 0; n < 200; n++) {
+            final List<int[]> frames = new ArrayList<int[]>();
+            int[] previous = new int[DigitSequenceCodec.DIGITS];
+            for (int length = random.nextInt(100); length > 0; length--) {
+                final int[] frame = previous.clone();
+                // Mostly small changes and holds, like animations and counters.
+                for (int changes = random.nextInt(4); changes > 0; changes--) {
+                    final int digit = random.nextInt(11);
+                    frame[random.nextInt(frame.length)] = digit == 10 ? BLANK : digit;
+                }
+                frames.add(frame);
+                previous = frame;
+            }
+            assertFramesEqual(frames, decode(DigitSequenceCodec.encode(frames)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidDigitIsRejected() {
+        DigitSequenceCodec.encode(frames(new int[]{0, 0, 0, 0, 0, 10}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingEndIsRejected() {
+        final byte[] encoded = DigitSequenceCodec.encode(frames(new int[]{1, 2, 3, 4, 5, 6}));
+        DigitSequenceCodec.decode(encoded, 0, encoded.length - 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedDeltaIsRejected() {
+        DigitSequenceCodec.decode(new byte[]{DigitSequenceCodec.OP_DELTA | 0x03}, 0, 1);
+    }
+
+    private static List<int[]> frames(int[]... frames) {
+        return new ArrayList<int[]>(Arrays.asList(frames));
+    }
+
+    private static List<int[]> decode(byte[] encoded) {
+        return DigitSequenceCodec.decode(encoded, 0, encoded.length);
+    }
+
+    private static void assertFramesEqual(List<int[]> expected, List<int[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("frame " + i, expected.get(i), actual.get(i));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.matias.nixieclockapp.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDecoderTest {
+
+    @Test
+    public void crcMatchesCcittFalseCheckValue() {
+        final byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0x29B1, Crc16.update(Crc16.INITIAL, data, 0, data.length));
+    }
+
+    @Test
+    public void encodedFrameDecodes() {
+        final byte[] payload = {1, 2, (byte) 0xA5, (byte) 0xFF};
+        final ByteBuffer in = encode(Frame.OP_SET_TIME, 42, payload);
+
+        final Frame frame = new Frame();
+        assertTrue(new FrameDecoder().decode(in, frame));
+        assertFalse(in.hasRemaining());
+        assertEquals(Frame.VERSION, frame.getVersion());
+        assertEquals(Frame.OP_SET_TIME, frame.getOpcode());
+        assertEquals(42, frame.getSequence());
+        assertArrayEquals(payload, payloadOf(frame));
+    }
+
+    @Test
+    public void emptyAndLargestPayloadsDecode() {
+        final byte[] largest = new byte[Frame.MAX_PAYLOAD];
+        for (int i = 0; i < largest.length; i++) {
+            largest[i] = (byte) (i * 7);
+        }
+        final ByteBuffer in = ByteBuffer.allocate(Frame.OVERHEAD * 2 + Frame.MAX_PAYLOAD);
+        FrameEncoder.encode(in, Frame.OP_ACK, 1);
+        FrameEncoder.encode(in, Frame.OP_SET_TIME, 2, largest, 0, largest.length);
+        in.flip();
+
+        final FrameDecoder decoder = new FrameDecoder();
+        final Frame frame = new Frame();
+        assertTrue(decoder.decode(in, frame));
+        assertEquals(Frame.OP_ACK, frame.getOpcode());
+        assertEquals(0, frame.getLength());
+        assertTrue(decoder.decode(in, frame));
+        assertArrayEquals(largest, payloadOf(frame));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encoderRejectsOversizedPayload() {
+        final byte[] payload = new byte[Frame.MAX_PAYLOAD + 1];
+        FrameEncoder.encode(ByteBuffer.allocate(Frame.OVERHEAD + payload.length),
+                Frame.OP_SET_TIME, 0, payload, 0, payload.length);
+    }
+
+    @Test
+    public void setTimeIsEncodedAsThreeBytes() {
+        final ByteBuffer in = ByteBuffer.allocate(Frame.MAX_FRAME_SIZE);
+        assertEquals(Frame.OVERHEAD + 3, FrameEncoder.encodeSetTime(in, 5, 23, 59, 0));
+        in.flip();
+
+        final Frame frame = new Frame();
+        assertTrue(new FrameDecoder().decode(in, frame));
+        assertEquals(Frame.OP_SET_TIME, frame.getOpcode());
+        assertArrayEquals(new byte[]{23, 59, 0}, payloadOf(frame));
+    }
+
+    @Test
+    public void leadingGarbageIsSkipped() {
+        final ByteBuffer frame = encode(Frame.OP_NACK, 3, new byte[]{9});
+        final ByteBuffer in = ByteBuffer.allocate(frame.remaining() + 5);
+        in.put("12,34".getBytes(StandardCharsets.US_ASCII)).put(frame).flip();
+
+        final FrameDecoder decoder = new FrameDecoder();
+        assertTrue(decoder.decode(in, new Frame()));
+        assertEquals(5, decoder.getSkippedBytes());
+    }
+
+    @Test
+    public void badCrcIsDroppedAndNextFrameDecodes() {
+        final ByteBuffer corrupted = encode(Frame.OP_NACK, 1, new byte[]{1, 2, 3});
+        corrupted.put(Frame.HEADER_SIZE + 1, (byte) 0x55);
+        final ByteBuffer good = encode(Frame.OP_NACK, 2, new byte[]{4});
+        final ByteBuffer in = concat(corrupted, good);
+
+        final FrameDecoder decoder = new FrameDecoder();
+        final Frame frame = new Frame();
+        assertTrue(decoder.decode(in, frame));
+        assertEquals(2, frame.getSequence());
+        assertEquals(1, decoder.getCrcErrorCount());
+        assertFalse(decoder.decode(in, frame));
+    }
+
+    @Test
+    public void impossibleLengthResyncsOnNextMarker() {
+        // A stray 0xA5 followed by a length over the limit, then a valid frame.
+        final ByteBuffer bogus = ByteBuffer.wrap(new byte[]{(byte) Frame.SOF, 1, 0x10, 0,
+                (byte) (Frame.MAX_PAYLOAD + 1)});
+        final ByteBuffer in = concat(bogus, encode(Frame.OP_SET_TIME, 7, new byte[]{1, 2, 3}));
+
+        final FrameDecoder decoder = new FrameDecoder();
+        final Frame frame = new Frame();
+        assertTrue(decoder.decode(in, frame));
+        assertEquals(7, frame.getSequence());
+        assertEquals(1, decoder.getLengthErrorCount());
+    }
+
+    @Test
+    public void frameSplitAcrossPacketsDecodesOnce() {
+        final ByteBuffer frame = concat(encode(Frame.OP_SET_TIME, 1, new byte[30]),
+                encode(Frame.OP_ACK, 2, new byte[0]));
+        final byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+
+        // Fed in 20 byte notifications and compacted in between, like FrameChannel does.
+        final FrameDecoder decoder = new FrameDecoder();
+        final Frame decoded = new Frame();
+        final ByteBuffer buffer = ByteBuffer.allocate(Frame.MAX_FRAME_SIZE * 2);
+        int frames = 0;
+        for (int offset = 0; offset < bytes.length; offset += 20) {
+            buffer.put(bytes, offset, Math.min(20, bytes.length - offset));
+            buffer.flip();
+            while (decoder.decode(buffer, decoded)) {
+                frames++;
+                assertEquals(frames, decoded.getSequence());
+            }
+            buffer.compact();
+        }
+        assertEquals(2, frames);
+        assertEquals(0, decoder.getCrcErrorCount());
+    }
+
+    static ByteBuffer encode(int opcode, int sequence, byte[] payload) {
+        final ByteBuffer out = ByteBuffer.allocate(Frame.OVERHEAD + payload.length);
+        FrameEncoder.encode(out, opcode, sequence, payload, 0, payload.length);
+        out.flip();
+        return out;
+    }
+
+    static ByteBuffer concat(ByteBuffer first, ByteBuffer second) {
+        final ByteBuffer out = ByteBuffer.allocate(first.remaining() + second.remaining());
+        out.put(first).put(second).flip();
+        return out;
+    }
+
+    static byte[] payloadOf(Frame frame) {
+        final ByteBuffer out = ByteBuffer.allocate(frame.getLength());
+        frame.getPayload(out);
+        return out.array();
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.matias.nixieclockapp.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static com.example.matias.nixieclockapp.protocol.FrameDecoderTest.concat;
+import static com.example.matias.nixieclockapp.protocol.FrameDecoderTest.encode;
+import static com.example.matias.nixieclockapp.protocol.FrameDecoderTest.payloadOf;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the encoder against the firmware's parser, through its JVM mirror.
+ */
+public class ReferenceDecoderTest {
+
+    @Test
+    public void encodedFrameIsAcceptedOnItsLastByte() {
+        final byte[] payload = {0, 1, (byte) 0xA5, (byte) 0x80};
+        final ByteBuffer in = encode(Frame.OP_SET_TIME, 200, payload);
+
+        final ReferenceDecoder decoder = new ReferenceDecoder();
+        while (in.remaining() > 1) {
+            assertEquals(ReferenceDecoder.RESULT_NONE, decoder.feed(in.get()));
+            assertTrue(decoder.isBusy());
+        }
+        assertEquals(ReferenceDecoder.RESULT_FRAME, decoder.feed(in.get()));
+        assertFalse(decoder.isBusy());
+
+        final Frame frame = decoder.getFrame();
+        assertEquals(Frame.OP_SET_TIME, frame.getOpcode());
+        assertEquals(200, frame.getSequence());
+        assertArrayEquals(payload, payloadOf(frame));
+    }
+
+    @Test
+    public void asciiFrameIsLeftToTheLegacyParser() {
+        final ReferenceDecoder decoder = new ReferenceDecoder();
+        for (byte b : "12,34".getBytes()) {
+            assertEquals(ReferenceDecoder.RESULT_NONE, decoder.feed(b));
+            assertFalse(decoder.isBusy());
+        }
+    }
+
+    @Test
+    public void badCrcIsAnError() {
+        final ByteBuffer in = encode(Frame.OP_NACK, 1, new byte[]{1, 2});
+        in.put(in.limit() - 1, (byte) (in.get(in.limit() - 1) ^ 1));
+        assertEquals(ReferenceDecoder.RESULT_ERROR, feedAll(new ReferenceDecoder(), in));
+    }
+
+    @Test
+    public void oversizedLengthIsAnError() {
+        final ReferenceDecoder decoder = new ReferenceDecoder();
+        decoder.feed(Frame.SOF);
+        decoder.feed(Frame.VERSION);
+        decoder.feed(Frame.OP_SET_TIME);
+        decoder.feed(0);
+        assertEquals(ReferenceDecoder.RESULT_ERROR, decoder.feed(Frame.MAX_PAYLOAD + 1));
+        assertFalse(decoder.isBusy());
+    }
+
+    @Test
+    public void otherVersionIsAnError() {
+        final ReferenceDecoder decoder = new ReferenceDecoder();
+        decoder.feed(Frame.SOF);
+        assertEquals(ReferenceDecoder.RESULT_ERROR, decoder.feed(Frame.VERSION + 1));
+        assertFalse(decoder.isBusy());
+    }
+
+    @Test
+    public void resyncsOnNextMarkerAfterAnError() {
+        final ByteBuffer corrupted = encode(Frame.OP_NACK, 1, new byte[]{1, 2, 3});
+        corrupted.put(Frame.HEADER_SIZE, (byte) 0x42);
+        final ByteBuffer in = concat(corrupted, encode(Frame.OP_NACK, 2, new byte[]{4}));
+
+        final ReferenceDecoder decoder = new ReferenceDecoder();
+        int frames = 0;
+        int errors = 0;
+        while (in.hasRemaining()) {
+            final int result = decoder.feed(in.get());
+            if (result == ReferenceDecoder.RESULT_FRAME) {
+                frames++;
+                assertEquals(2, decoder.getFrame().getSequence());
+            } else if (result == ReferenceDecoder.RESULT_ERROR) {
+                errors++;
+            }
+        }
+        assertEquals(1, frames);
+        assertEquals(1, errors);
+    }
+
+    @Test
+    public void agreesWithFrameDecoderOnRandomFrames() {
+        final Random random = new Random(1);
+        final ReferenceDecoder reference = new ReferenceDecoder();
+        final FrameDecoder decoder = new FrameDecoder();
+        final Frame decoded = new Frame();
+        for (int n = 0; n < 1000; n++) {
+            final byte[] payload = new byte[random.nextInt(Frame.MAX_PAYLOAD + 1)];
+            random.nextBytes(payload);
+            final int opcode = random.nextInt(256);
+            final int sequence = random.nextInt(256);
+            final ByteBuffer in = encode(opcode, sequence, payload);
+
+            assertTrue(decoder.decode(in.duplicate(), decoded));
+            assertEquals(ReferenceDecoder.RESULT_FRAME, feedAll(reference, in));
+            final Frame frame = reference.getFrame();
+            assertEquals(decoded.getOpcode(), frame.getOpcode());
+            assertEquals(decoded.getSequence(), frame.getSequence());
+            assertArrayEquals(payloadOf(decoded), payloadOf(frame));
+            assertEquals(opcode, frame.getOpcode());
+            assertEquals(sequence, frame.getSequence());
+            assertArrayEquals(payload, payloadOf(frame));
+        }
+    }
+
+    /**
+     * @return The result of the last byte.
+     */
+    private static int feedAll(ReferenceDecoder decoder, ByteBuffer in) {
+        int result = ReferenceDecoder.RESULT_NONE;
+        while (in.hasRemaining()) {
+            result = decoder.feed(in.get());
+        }
+        return result;
+    }
+}
@@ -21,8 +21,10 @@
 
 #include <DS1302RTC.h>
 #include <Time.h>
+#include <EEPROM.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
 
 // Debug mode for sending the current time via serial 
 #define DEBUG_ON false
@@ -59,12 +61,135 @@ long runTime = 0;        // Time from when we started.
 // NOTE: Seconds start at 0
 long clockHourSet;
 long clockMinSet;
+long clockSecSet = 0;               // only set by binary frames
+unsigned long clockStartMillis = 0; // millis() when the seconds counter was last restarted
+
+// Display settings, set by the app with OP_APPLY_SETTINGS
+byte displayBrightness = 255; // tube on time, 0 (off) to 255 (full)
+bool displayMode24h = true;   // false shows 1 to 12 hours
 
 int HourButtonPressed = false;
 int MinButtonPressed = false;
 
 String data = ""; // initialize received message
 
+/**
+ * Binary command frames, sent by the app next to the legacy "HH,MM" ASCII frame:
+ * 0xA5 | version | opcode | sequence | length | payload | CRC16 (big endian)
+ * The CRC-16/CCITT-FALSE covers version through payload. The Java side is
+ * protocol/Frame.java in the app; protocol/ReferenceDecoder.java mirrors ParseFrameByte()
+ * and has to be kept in sync with it.
+ */
+#define FRAME_SOF            0xA5
+#define FRAME_VERSION        1
+#define FRAME_MAX_PAYLOAD    32
+
+#define OP_ACK               0x01
+#define OP_NACK              0x02
+#define OP_ECHO              0x03
+#define OP_ECHO_REPLY        0x04
+#define OP_SETTINGS          0x05
+#define OP_DATA_ACK          0x06
+#define OP_CAPABILITIES      0x07
+#define OP_SET_TIME          0x10
+#define OP_SET_DATETIME      0x11
+#define OP_APPLY_SETTINGS    0x12
+#define OP_GET_SETTINGS      0x13
+#define OP_STREAM_OPEN       0x14
+#define OP_BULK_BEGIN        0x15
+#define OP_BULK_COMMIT       0x16
+#define OP_PLAY_SEQUENCE     0x17
+#define OP_GET_CAPABILITIES  0x18
+#define OP_DATA              0x20
+#define OP_DISPLAY           0x21
+
+// Reliable stream: OP_DATA segments carry their own sequence number. Up to STREAM_WINDOW - 1
+// segments after the expected one are buffered, the app keeps at most STREAM_WINDOW in flight.
+#define STREAM_WINDOW        4
+
+// Bulk transfers: payloads arrive over the reliable stream in chunks of up to BULK_CHUNK_SIZE
+// bytes and are written to EEPROM from BULK_EEPROM_BASE once OP_BULK_COMMIT confirms their CRC
+#define BULK_CHUNK_SIZE      64
+#define BULK_MAX_SIZE        512
+#define BULK_EEPROM_BASE     0
+
+// Digit sequence ops, see AnimationStep()
+#define SEQ_DELTA            0x00
+#define SEQ_HOLD             0x80
+#define SEQ_FULL             0xC0
+#define SEQ_END              0xFF
+
+// OP_CAPABILITIES: this build is the RTC variant, and handles the commands 0x10-0x18, OP_DATA
+// and OP_DISPLAY (bit n: opcode CAPABILITY_OPCODE_BASE + n). Keep in sync with HandleFrame().
+#define CLOCK_VARIANT        0x01
+#define CAP_RTC              0x01
+#define CAPABILITY_OPCODE_BASE 0x10
+#define CAPABILITY_OPCODES   0x000301FFUL
+
+// Time streamed digits stay on the tubes after the last OP_DISPLAY frame
+#define DISPLAY_STREAM_HOLD  1000
+
+// OP_APPLY_SETTINGS items: setting | length | value
+#define SETTING_TIME         0x01
+#define SETTING_DATETIME     0x02
+#define SETTING_BRIGHTNESS   0x03
+#define SETTING_MODE_24H     0x04
+
+#define ERROR_UNKNOWN_OPCODE 0x01
+#define ERROR_BAD_LENGTH     0x02
+#define ERROR_BAD_VALUE      0x03
+
+// ParseFrameByte() states
+#define STATE_WAIT_SOF       0
+#define STATE_VERSION        1
+#define STATE_OPCODE         2
+#define STATE_SEQUENCE       3
+#define STATE_LENGTH         4
+#define STATE_PAYLOAD        5
+#define STATE_CRC_HIGH       6
+#define STATE_CRC_LOW        7
+
+// ParseFrameByte() results
+#define RESULT_NONE          0
+#define RESULT_FRAME         1
+#define RESULT_ERROR         2
+
+byte frameState = STATE_WAIT_SOF;
+byte frameOpcode;
+byte frameSequence;
+byte frameLength;
+byte frameIndex;
+byte framePayload[FRAME_MAX_PAYLOAD];
+uint16_t frameCrc;
+uint16_t frameReceivedCrc;
+
+byte streamExpected = 0;                                  // next segment to deliver
+byte streamSlots[STREAM_WINDOW][FRAME_MAX_PAYLOAD];       // out of order segments, by seq % window
+byte streamSlotLength[STREAM_WINDOW];
+byte streamSlotUsed = 0;                                  // bit per slot
+bool streamAckPending = false;
+unsigned long streamBytesReceived = 0;
+
+bool bulkActive = false;
+uint16_t bulkId;
+uint16_t bulkSize;
+uint16_t bulkCrc;                       // CRC of the whole payload, identifies it with id and size
+uint16_t bulkCommitted = 0;             // bytes verified and stored in EEPROM
+byte bulkChunk[BULK_CHUNK_SIZE];        // chunk received since the last commit
+byte bulkChunkLength = 0;
+
+bool animationPlaying = false;         // playing the digit sequence stored by a bulk transfer
+bool animationLoop;
+uint16_t animationPos;                  // next op, relative to BULK_EEPROM_BASE
+byte animationHold;                     // repeats of the current frame left
+unsigned int animationInterval;         // ms per frame
+unsigned long animationFrameMillis;     // millis() of the current frame
+int animationDigits[6];
+
+int displayStreamDigits[6];             // digits streamed by the app, shown instead of the time
+bool displayStreamActive = false;
+unsigned long displayStreamMillis = 0;  // millis() of the last OP_DISPLAY frame
+
 /**
  * SN74141: True Table
  * D  C  B  A  #     
@@ -215,6 +340,7 @@ void DisplayNumberSet (int anod, int num1, int num2) {
         case 7: a = 1; b = 1; c = 1; d = 0; break;
         case 8: a = 0; b = 0; c = 0; d = 1; break;
         case 9: a = 1; b = 0; c = 0; d = 1; break;
+        default: a = 1; b = 1; c = 1; d = 1; break; // codes above 9 blank the tube
     }  
   
     // Write to output pins.
@@ -235,6 +361,7 @@ void DisplayNumberSet (int anod, int num1, int num2) {
         case 7: a = 1; b = 1; c = 1; d = 0; break;
         case 8: a = 0; b = 0; c = 0; d = 1; break;
         case 9: a = 1; b = 0; c = 0; d = 1; break;
+        default: a = 1; b = 1; c = 1; d = 1; break; // codes above 9 blank the tube
     }
   
     // Write to output pins
@@ -253,7 +380,15 @@ void DisplayNumberSet (int anod, int num1, int num2) {
     //       you want to set this delay just right so that you have 
     //       nice bright output yet quick enough so that you can multiplex with
     //       more bulbs.
-    delay(2);
+    // Dimming shortens the on time but keeps the 2 ms slot, so the refresh rate doesn't change.
+    if (displayBrightness == 255) {
+        delay(2);
+    } else {
+        unsigned int onTime = (unsigned int) (2000UL * displayBrightness / 255);
+        delayMicroseconds(onTime);
+        digitalWrite(anodPin, LOW);
+        delayMicroseconds(2000 - onTime);
+    }
   
     // Shut off this anod.
     digitalWrite(anodPin, LOW);
@@ -274,6 +409,511 @@ void DisplayNumberString (int* array) {
     DisplayNumberSet(2, array[2], array[5]);   
 }
 
+/**
+ * Crc16Update
+ * Purpose: CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF), one byte at a time
+ * @var crc current CRC value
+ * @var b next byte
+ */
+uint16_t Crc16Update (uint16_t crc, byte b) {
+    crc ^= (uint16_t) b << 8;
+    for (byte bit = 0; bit < 8; bit++) {
+        if (crc & 0x8000) {
+            crc = (crc << 1) ^ 0x1021;
+        } else {
+            crc = crc << 1;
+        }
+    }
+    return crc;
+}
+
+/**
+ * ParseFrameByte
+ * Purpose: feeds one received byte to the binary frame parser. After an error the parser
+ *          waits for the next start of frame byte.
+ * @var b received byte
+ * @return RESULT_FRAME once a valid frame is in frameOpcode, frameSequence, frameLength and
+ *         framePayload; RESULT_ERROR if the frame in progress was invalid; RESULT_NONE otherwise
+ */
+byte ParseFrameByte (byte b) {
+    switch (frameState) {
+        case STATE_WAIT_SOF:
+            if (b == FRAME_SOF) {
+                frameCrc = 0xFFFF;
+                frameState = STATE_VERSION;
+            }
+            return RESULT_NONE;
+        case STATE_VERSION:
+            if (b != FRAME_VERSION) {
+                frameState = STATE_WAIT_SOF;
+                return RESULT_ERROR;
+            }
+            frameCrc = Crc16Update(frameCrc, b);
+            frameState = STATE_OPCODE;
+            return RESULT_NONE;
+        case STATE_OPCODE:
+            frameOpcode = b;
+            frameCrc = Crc16Update(frameCrc, b);
+            frameState = STATE_SEQUENCE;
+            return RESULT_NONE;
+        case STATE_SEQUENCE:
+            frameSequence = b;
+            frameCrc = Crc16Update(frameCrc, b);
+            frameState = STATE_LENGTH;
+            return RESULT_NONE;
+        case STATE_LENGTH:
+            if (b > FRAME_MAX_PAYLOAD) {
+                frameState = STATE_WAIT_SOF;
+                return RESULT_ERROR;
+            }
+            frameLength = b;
+            frameIndex = 0;
+            frameCrc = Crc16Update(frameCrc, b);
+            frameState = frameLength > 0 ? STATE_PAYLOAD : STATE_CRC_HIGH;
+            return RESULT_NONE;
+        case STATE_PAYLOAD:
+            framePayload[frameIndex++] = b;
+            frameCrc = Crc16Update(frameCrc, b);
+            if (frameIndex == frameLength) {
+                frameState = STATE_CRC_HIGH;
+            }
+            return RESULT_NONE;
+        case STATE_CRC_HIGH:
+            frameReceivedCrc = (uint16_t) b << 8;
+            frameState = STATE_CRC_LOW;
+            return RESULT_NONE;
+        case STATE_CRC_LOW:
+            frameReceivedCrc |= b;
+            frameState = STATE_WAIT_SOF;
+            if (frameReceivedCrc != frameCrc) {
+                return RESULT_ERROR;
+            }
+            return RESULT_FRAME;
+        default:
+            frameState = STATE_WAIT_SOF;
+            return RESULT_ERROR;
+    }
+}
+
+/**
+ * SendFrame
+ * Purpose: writes a binary frame to the serial port (notified to the app by the HM-10)
+ * @var opcode frame opcode
+ * @var sequence sequence number, the one of the command being answered
+ * @var payload payload bytes
+ * @var length payload length
+ */
+void SendFrame (byte opcode, byte sequence, const byte* payload, byte length) {
+    uint16_t crc = 0xFFFF;
+    byte header[4] = {FRAME_VERSION, opcode, sequence, length};
+
+    Serial.write(FRAME_SOF);
+    for (byte i = 0; i < 4; i++) {
+        Serial.write(header[i]);
+        crc = Crc16Update(crc, header[i]);
+    }
+    for (byte i = 0; i < length; i++) {
+        Serial.write(payload[i]);
+        crc = Crc16Update(crc, payload[i]);
+    }
+    Serial.write((byte) (crc >> 8));
+    Serial.write((byte) crc);
+}
+
+/**
+ * SendNack
+ * Purpose: rejects the frame being handled
+ * @var error one of the ERROR_ codes
+ */
+void SendNack (byte error) {
+    SendFrame(OP_NACK, frameSequence, &error, 1);
+}
+
+/**
+ * SendNackItem
+ * Purpose: rejects an OP_APPLY_SETTINGS frame because of one of its items
+ * @var error one of the ERROR_ codes
+ * @var item index of the offending item
+ */
+void SendNackItem (byte error, byte item) {
+    byte payload[2] = {error, item};
+    SendFrame(OP_NACK, frameSequence, payload, 2);
+}
+
+/**
+ * ApplyTime
+ * Purpose: sets the clock and the RTC, restarting the seconds counter
+ * @var h hour
+ * @var m minute
+ * @var s second
+ */
+void ApplyTime (byte h, byte m, byte s) {
+    clockHourSet = h;
+    clockMinSet = m;
+    clockSecSet = s;
+    clockStartMillis = millis();
+    setTime(clockHourSet, clockMinSet, clockSecSet, 01, 7, 2018);
+    RTC.set(now());
+}
+
+/**
+ * ApplyDateTime
+ * Purpose: sets the clock and the RTC from 4 big endian bytes of local epoch seconds,
+ *          restarting the seconds counter
+ * @var value the 4 bytes
+ */
+void ApplyDateTime (const byte* value) {
+    time_t t = ((time_t) value[0] << 24) | ((time_t) value[1] << 16)
+            | ((time_t) value[2] << 8) | (time_t) value[3];
+    clockStartMillis = millis();
+    clockHourSet = hour(t);
+    clockMinSet = minute(t);
+    clockSecSet = second(t);
+    setTime(t);
+    RTC.set(t);
+}
+
+/**
+ * CheckSetting
+ * Purpose: validates one OP_APPLY_SETTINGS item
+ * @var setting one of the SETTING_ codes
+ * @var value item value
+ * @var length value length
+ * @return 0 if the item can be applied, otherwise one of the ERROR_ codes
+ */
+byte CheckSetting (byte setting, const byte* value, byte length) {
+    switch (setting) {
+        case SETTING_TIME:
+            if (length != 3) return ERROR_BAD_LENGTH;
+            if (value[0] > 23 || value[1] > 59 || value[2] > 59) return ERROR_BAD_VALUE;
+            return 0;
+        case SETTING_DATETIME:
+            return length == 4 ? 0 : ERROR_BAD_LENGTH;
+        case SETTING_BRIGHTNESS:
+            return length == 1 ? 0 : ERROR_BAD_LENGTH;
+        case SETTING_MODE_24H:
+            if (length != 1) return ERROR_BAD_LENGTH;
+            return value[0] > 1 ? ERROR_BAD_VALUE : 0;
+        default:
+            return ERROR_BAD_VALUE;
+    }
+}
+
+/**
+ * ApplySettings
+ * Purpose: handles OP_APPLY_SETTINGS. Every item is checked before any is applied, so the
+ *          frame is applied completely or not at all, and answered with a single ACK.
+ */
+void ApplySettings () {
+    byte item = 0;
+    for (byte i = 0; i < frameLength; i += 2 + framePayload[i + 1], item++) {
+        if (i + 2 > frameLength || i + 2 + framePayload[i + 1] > frameLength) {
+            SendNackItem(ERROR_BAD_LENGTH, item);
+            return;
+        }
+        byte error = CheckSetting(framePayload[i], &framePayload[i + 2], framePayload[i + 1]);
+        if (error != 0) {
+            SendNackItem(error, item);
+            return;
+        }
+    }
+
+    for (byte i = 0; i < frameLength; i += 2 + framePayload[i + 1]) {
+        const byte* value = &framePayload[i + 2];
+        switch (framePayload[i]) {
+            case SETTING_TIME:       ApplyTime(value[0], value[1], value[2]); break;
+            case SETTING_DATETIME:   ApplyDateTime(value); break;
+            case SETTING_BRIGHTNESS: displayBrightness = value[0]; break;
+            case SETTING_MODE_24H:   displayMode24h = value[0] == 1; break;
+        }
+    }
+    SendFrame(OP_ACK, frameSequence, 0, 0);
+}
+
+/**
+ * HandleStreamData
+ * Purpose: consumes reliable stream data, in order and exactly once
+ * @var data segment payload
+ * @var length payload length
+ */
+void HandleStreamData (const byte* data, byte length) {
+    streamBytesReceived += length;
+    if (bulkActive) {
+        // Overflowing bytes are dropped, the commit's CRC check then fails.
+        for (byte i = 0; i < length && bulkChunkLength < BULK_CHUNK_SIZE; i++) {
+            bulkChunk[bulkChunkLength++] = data[i];
+        }
+    }
+}
+
+/**
+ * BulkBegin
+ * Purpose: handles OP_BULK_BEGIN: resumes the transfer of the same payload (same id, size and
+ *          CRC) or starts a new one, and answers with the bytes already committed
+ */
+void BulkBegin () {
+    if (frameLength != 6) {
+        SendNack(ERROR_BAD_LENGTH);
+        return;
+    }
+    uint16_t id = ((uint16_t) framePayload[0] << 8) | framePayload[1];
+    uint16_t size = ((uint16_t) framePayload[2] << 8) | framePayload[3];
+    uint16_t crc = ((uint16_t) framePayload[4] << 8) | framePayload[5];
+    if (size > BULK_MAX_SIZE) {
+        SendNack(ERROR_BAD_VALUE);
+        return;
+    }
+    if (!bulkActive || id != bulkId || size != bulkSize || crc != bulkCrc) {
+        animationPlaying = false; // its sequence is about to be overwritten
+        bulkId = id;
+        bulkSize = size;
+        bulkCrc = crc;
+        bulkCommitted = 0;
+    }
+    bulkActive = true;
+    bulkChunkLength = 0;
+    byte offset[2] = {(byte) (bulkCommitted >> 8), (byte) bulkCommitted};
+    SendFrame(OP_ACK, frameSequence, offset, 2);
+}
+
+/**
+ * BulkCommit
+ * Purpose: handles OP_BULK_COMMIT: stores the chunk received since the last commit if its end
+ *          offset and CRC match, drops it otherwise
+ */
+void BulkCommit () {
+    if (frameLength != 4) {
+        SendNack(ERROR_BAD_LENGTH);
+        return;
+    }
+    uint16_t end = ((uint16_t) framePayload[0] << 8) | framePayload[1];
+    uint16_t crc = ((uint16_t) framePayload[2] << 8) | framePayload[3];
+    uint16_t chunkCrc = 0xFFFF;
+    for (byte i = 0; i < bulkChunkLength; i++) {
+        chunkCrc = Crc16Update(chunkCrc, bulkChunk[i]);
+    }
+    if (!bulkActive || end != bulkCommitted + bulkChunkLength || end > bulkSize
+            || crc != chunkCrc) {
+        bulkChunkLength = 0;
+        SendNack(ERROR_BAD_VALUE);
+        return;
+    }
+    for (byte i = 0; i < bulkChunkLength; i++) {
+        EEPROM.update(BULK_EEPROM_BASE + bulkCommitted + i, bulkChunk[i]);
+    }
+    bulkCommitted = end;
+    bulkChunkLength = 0;
+    SendFrame(OP_ACK, frameSequence, 0, 0);
+}
+
+/**
+ * HandleSegment
+ * Purpose: handles an OP_DATA segment: delivers it if it's the expected one, together with the
+ *          buffered segments that follow, or buffers it if it's within the window. Duplicates
+ *          only trigger a new ack.
+ */
+void HandleSegment () {
+    byte distance = frameSequence - streamExpected;
+    if (distance == 0) {
+        HandleStreamData(framePayload, frameLength);
+        streamExpected++;
+        byte slot = streamExpected % STREAM_WINDOW;
+        while (streamSlotUsed & (1 << slot)) {
+            HandleStreamData(streamSlots[slot], streamSlotLength[slot]);
+            streamSlotUsed &= ~(1 << slot);
+            streamExpected++;
+            slot = streamExpected % STREAM_WINDOW;
+        }
+    } else if (distance < STREAM_WINDOW) {
+        byte slot = frameSequence % STREAM_WINDOW;
+        memcpy(streamSlots[slot], framePayload, frameLength);
+        streamSlotLength[slot] = frameLength;
+        streamSlotUsed |= 1 << slot;
+    }
+    streamAckPending = true;
+}
+
+/**
+ * SendStreamAck
+ * Purpose: acknowledges the stream: the sequence is the next segment expected, the payload a
+ *          bitmap of the buffered segments after it (bit 0: expected + 1)
+ */
+void SendStreamAck () {
+    byte sack = 0;
+    for (byte i = 1; i < STREAM_WINDOW; i++) {
+        if (streamSlotUsed & (1 << ((byte) (streamExpected + i) % STREAM_WINDOW))) {
+            sack |= 1 << (i - 1);
+        }
+    }
+    SendFrame(OP_DATA_ACK, streamExpected, &sack, 1);
+    streamAckPending = false;
+}
+
+/**
+ * AnimationStep
+ * Purpose: decodes the next frame of the digit sequence in EEPROM into animationDigits. Each op
+ *          codes a frame against the previous one: 00mmmmmm DELTA, the tubes in mask m change
+ *          to the digits that follow, two per byte, high nibble first; 10nnnnnn HOLD, the
+ *          previous frame n + 1 times; 11000000 FULL, six BCD digits follow; 11111111 END.
+ *          The app's protocol/DigitSequenceCodec.java encodes it.
+ * @return false at the end of the sequence
+ */
+bool AnimationStep () {
+    if (animationHold > 0) {
+        animationHold--;
+        return true;
+    }
+    if (animationPos >= bulkCommitted) {
+        return false;
+    }
+    byte op = EEPROM.read(BULK_EEPROM_BASE + animationPos++);
+    if (op == SEQ_END) {
+        return false;
+    } else if (op == SEQ_FULL) {
+        for (byte i = 0; i < 6; i += 2) {
+            byte b = EEPROM.read(BULK_EEPROM_BASE + animationPos++);
+            animationDigits[i] = b >> 4;
+            animationDigits[i + 1] = b & 0x0F;
+        }
+    } else if ((op & 0xC0) == SEQ_HOLD) {
+        animationHold = op & 0x3F;
+    } else {
+        byte b = 0;
+        bool high = true;
+        for (byte i = 0; i < 6; i++) {
+            if (!(op & (1 << i))) continue;
+            if (high) {
+                b = EEPROM.read(BULK_EEPROM_BASE + animationPos++);
+                animationDigits[i] = b >> 4;
+            } else {
+                animationDigits[i] = b & 0x0F;
+            }
+            high = !high;
+        }
+    }
+    return true;
+}
+
+/**
+ * AnimationStart
+ * Purpose: plays the digit sequence from its first frame
+ */
+bool AnimationStart () {
+    for (byte i = 0; i < 6; i++) {
+        animationDigits[i] = 0;
+    }
+    animationPos = 0;
+    animationHold = 0;
+    animationFrameMillis = millis();
+    return AnimationStep();
+}
+
+/**
+ * HandleFrame
+ * Purpose: executes the binary frame just received by ParseFrameByte() and answers it
+ */
+void HandleFrame () {
+    switch (frameOpcode) {
+        case OP_SET_TIME:
+            if (frameLength != 3) {
+                SendNack(ERROR_BAD_LENGTH);
+                return;
+            }
+            if (framePayload[0] > 23 || framePayload[1] > 59 || framePayload[2] > 59) {
+                SendNack(ERROR_BAD_VALUE);
+                return;
+            }
+            ApplyTime(framePayload[0], framePayload[1], framePayload[2]);
+            SendFrame(OP_ACK, frameSequence, 0, 0);
+            break;
+        case OP_SET_DATETIME:
+            // The app schedules this frame to arrive on a second boundary, so the seconds
+            // counter restarts right now.
+            if (frameLength != 4) {
+                SendNack(ERROR_BAD_LENGTH);
+                return;
+            }
+            ApplyDateTime(framePayload);
+            SendFrame(OP_ACK, frameSequence, 0, 0);
+            break;
+        case OP_APPLY_SETTINGS:
+            ApplySettings();
+            break;
+        case OP_STREAM_OPEN:
+            streamExpected = 0;
+            streamSlotUsed = 0;
+            streamAckPending = false;
+            SendFrame(OP_ACK, frameSequence, 0, 0);
+            break;
+        case OP_DATA:
+            HandleSegment();
+            break;
+        case OP_BULK_BEGIN:
+            BulkBegin();
+            break;
+        case OP_BULK_COMMIT:
+            BulkCommit();
+            break;
+        case OP_DISPLAY:
+            // Not answered, the app streams these. Two BCD digits per byte.
+            if (frameLength == 3) {
+                for (byte i = 0; i < 3; i++) {
+                    displayStreamDigits[2 * i] = framePayload[i] >> 4;
+                    displayStreamDigits[2 * i + 1] = framePayload[i] & 0x0F;
+                }
+                displayStreamActive = true;
+                displayStreamMillis = millis();
+            } else if (frameLength == 0) {
+                displayStreamActive = false;
+            }
+            break;
+        case OP_PLAY_SEQUENCE:
+            // Frame interval in ms (2 bytes) and flags (bit 0: loop); no payload stops.
+            if (frameLength == 0) {
+                animationPlaying = false;
+            } else if (frameLength != 3) {
+                SendNack(ERROR_BAD_LENGTH);
+                return;
+            } else if (!bulkActive || bulkCommitted != bulkSize) {
+                SendNack(ERROR_BAD_VALUE);
+                return;
+            } else {
+                animationInterval = ((unsigned int) framePayload[0] << 8) | framePayload[1];
+                animationLoop = framePayload[2] & 0x01;
+                animationPlaying = AnimationStart();
+            }
+            SendFrame(OP_ACK, frameSequence, 0, 0);
+            break;
+        case OP_GET_SETTINGS:
+            // Same items as OP_APPLY_SETTINGS, so the app can tell what has to be sent again.
+            {
+                byte settings[6] = {SETTING_BRIGHTNESS, 1, displayBrightness,
+                                    SETTING_MODE_24H, 1, (byte) (displayMode24h ? 1 : 0)};
+                SendFrame(OP_SETTINGS, frameSequence, settings, 6);
+            }
+            break;
+        case OP_GET_CAPABILITIES:
+            {
+                byte capabilities[10] = {CLOCK_VARIANT, CAP_RTC, FRAME_MAX_PAYLOAD,
+                                         STREAM_WINDOW, BULK_MAX_SIZE >> 8,
+                                         BULK_MAX_SIZE & 0xFF,
+                                         (byte) (CAPABILITY_OPCODES >> 24),
+                                         (byte) (CAPABILITY_OPCODES >> 16),
+                                         (byte) (CAPABILITY_OPCODES >> 8),
+                                         (byte) CAPABILITY_OPCODES};
+                SendFrame(OP_CAPABILITIES, frameSequence, capabilities, 10);
+            }
+            break;
+        case OP_ECHO:
+            // Answered before anything else so the app can measure the link latency.
+            SendFrame(OP_ECHO_REPLY, frameSequence, framePayload, frameLength);
+            break;
+        default:
+            SendNack(ERROR_UNKNOWN_OPCODE);
+            break;
+    }
+}
+
 /**
  * Loop
  * Purpose: Main function that will continue to be executed as long as the system is energised
@@ -281,16 +921,39 @@ void DisplayNumberString (int* array) {
 void loop() {
     char lastChar = '0'; // individual char message
    
-    // Append data as it keeps arriving
-    if(Serial.available()) {
+    // Append data as it keeps arriving. Binary frames start with FRAME_SOF, which never
+    // shows up in the ASCII frame, and are handled by the frame parser. They are drained
+    // completely so a frame is applied as soon as its last byte arrives, instead of one byte
+    // per display refresh; the ASCII frame is still read one character per loop. Only its last
+    // 5 characters are kept, so stray bytes, like the rest of a frame the parser dropped, can't
+    // keep the next one from being recognised.
+    while(Serial.available()) {
        lastChar = Serial.read();
-       data.concat(lastChar);
+       if (frameState != STATE_WAIT_SOF || (byte) lastChar == FRAME_SOF) {
+           if (ParseFrameByte((byte) lastChar) == RESULT_FRAME) {
+               HandleFrame();
+           }
+       } else {
+           data.concat(lastChar);
+           if (data.length() > 5) {
+               data = data.substring(data.length() - 5);
+           }
+           break;
+       }
+    }
+
+    // One ack for all the segments that arrived since the last loop.
+    if (streamAckPending) {
+        SendStreamAck();
     }
 
     // check the frame is completed    
-    if (data.length() == 5 && data.indexOf(",") != -1) {
+    if (data.length() == 5 && data.charAt(2) == ',' && isDigit(data.charAt(0))
+            && isDigit(data.charAt(1)) && isDigit(data.charAt(3)) && isDigit(data.charAt(4))) {
         clockHourSet = atoi(data.substring(0, 2).c_str());
         clockMinSet = atoi(data.substring(3).c_str());
+        clockSecSet = 0;
+        clockStartMillis = 0;
         data = "";
         setTime(clockHourSet,clockMinSet,0,01,7,2018); // change time accordingly
         RTC.set(now());
@@ -301,7 +964,7 @@ void loop() {
     runTime = millis();
 
     // Get time in seconds.
-    long time = (runTime) / 1000;
+    long time = (runTime - clockStartMillis) / 1000;
       
     int hourInput = digitalRead(14);
     int minInput  = digitalRead(15);
@@ -333,7 +996,7 @@ void loop() {
     // Set time based on offset..
     long hbump = 60*60*clockHourSet;
     long mbump = 60*clockMinSet;
-    time += mbump + hbump;
+    time += mbump + hbump + clockSecSet;
 
     // Convert time to days,hours,mins,seconds
     long days  = time / DAYS;       time -= days  * DAYS; 
@@ -341,6 +1004,11 @@ void loop() {
     long minutes  = time / MINS;    time -= minutes  * MINS; 
     long seconds  = time; 
 
+    if (!displayMode24h) {
+        hours = hours % 12;
+        if (hours == 0) hours = 12;
+    }
+
     // Get the high and low order values for hours,min,seconds. 
     int lowerHours = hours % 10;
     int upperHours = hours - lowerHours;
@@ -361,7 +1029,24 @@ void loop() {
     NumberArray[4] = upperSeconds;
     NumberArray[5] = lowerSeconds;
 
-    // Display.
+    // Display. Digits streamed by the app win while they keep coming.
+    if (displayStreamActive && runTime - displayStreamMillis < DISPLAY_STREAM_HOLD) {
+        DisplayNumberString(displayStreamDigits);
+        return;
+    }
+    displayStreamActive = false;
+
+    // Then a digit sequence being played.
+    if (animationPlaying && runTime - animationFrameMillis >= animationInterval) {
+        animationFrameMillis += animationInterval;
+        if (!AnimationStep()) {
+            animationPlaying = animationLoop && AnimationStart();
+        }
+    }
+    if (animationPlaying) {
+        DisplayNumberString(animationDigits);
+        return;
+    }
     DisplayNumberString(NumberArray);
 }
 
@@ -229,14 +229,20 @@ void loop() {
     // BT message
     char lastChar = '0'; // individual char message
    
-    // Append data as it keeps arriving
+    // Append data as it keeps arriving. Only the last 5 characters are kept, so stray bytes,
+    // like the capability query of the app's binary protocol (not answered by this firmware),
+    // can't keep the next frame from being recognised.
     if(Serial.available()) {
        lastChar = Serial.read();
        data.concat(lastChar);
+       if (data.length() > 5) {
+           data = data.substring(data.length() - 5);
+       }
     }
 
     // check the frame is completed    
-    if (data.length() == 5 && data.indexOf(",") != -1) {
+    if (data.length() == 5 && data.charAt(2) == ',' && isDigit(data.charAt(0))
+            && isDigit(data.charAt(1)) && isDigit(data.charAt(3)) && isDigit(data.charAt(4))) {
         clockHourSet = atoi(data.substring(0, 2).c_str());
         clockMinSet = atoi(data.substring(3).c_str());
         data = "";